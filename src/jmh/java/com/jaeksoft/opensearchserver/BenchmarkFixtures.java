@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.qwazr.extractor.ParserResult;
+import com.qwazr.utils.ObjectMappers;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * The inputs shared by the benchmarks: the bundled HTML fixture,
+ * and the in-memory stand-ins of the remote services.
+ */
+final class BenchmarkFixtures {
+
+    final static String OSS_HTML = "/com/jaeksoft/searchlib/test/oss.html";
+
+    /**
+     * @return the content of the oss.html fixture
+     */
+    static byte[] ossHtml() {
+        try (final InputStream input = BenchmarkFixtures.class.getResourceAsStream(OSS_HTML)) {
+            if (input == null)
+                throw new IllegalStateException("The fixture is missing: " + OSS_HTML);
+            return input.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * A parser result of the size of the one returned by the HTML parser for the fixture,
+     * built without the parser.
+     */
+    static ParserResult ossParserResult() {
+        final String html = new String(ossHtml(), StandardCharsets.UTF_8);
+        final String text = html.replaceAll("(?s)<(script|style).*?</\\1>", " ")
+            .replaceAll("<[^>]*>", " ")
+            .replaceAll("\\s+", " ")
+            .trim();
+        final ObjectNode result = ObjectMappers.JSON.createObjectNode();
+        result.putObject("metas").put("Content-Type", "text/html").put("charset", "UTF-8");
+        final ObjectNode document = result.putArray("documents").addObject();
+        document.putArray("title").add("OpenSearchServer | Open Source Search Engine and Search API");
+        document.putArray("lang_detection").add("en");
+        final ArrayNode content = document.putArray("content");
+        for (final String sentence : text.split("(?<=[.!?]) "))
+            content.add(sentence);
+        try {
+            return ObjectMappers.JSON.treeToValue(result, ParserResult.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Build an implementation of a service interface:
+     * the methods return the given value when their name is in the map, or the default value of their type.
+     *
+     * @param serviceClass the service interface
+     * @param results      the returned values by method name
+     * @param <T>          the type of the service
+     * @return the stand-in service
+     */
+    static <T> T service(final Class<T> serviceClass, final Map<String, ?> results) {
+        return serviceClass.cast(Proxy.newProxyInstance(serviceClass.getClassLoader(), new Class<?>[]{serviceClass},
+            (proxy, method, args) -> {
+                if (method.getDeclaringClass() == Object.class) {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            return serviceClass.getSimpleName();
+                    }
+                }
+                final Object result = results.get(method.getName());
+                if (result instanceof ServiceMethod)
+                    return ((ServiceMethod) result).invoke(args);
+                if (result != null || !method.getReturnType().isPrimitive())
+                    return result;
+                if (method.getReturnType() == boolean.class)
+                    return false;
+                if (method.getReturnType() == void.class)
+                    return null;
+                if (method.getReturnType() == char.class)
+                    return (char) 0;
+                return ObjectMappers.JSON.convertValue(0, method.getReturnType());
+            }));
+    }
+
+    /**
+     * A method of a stand-in service which computes its result from the arguments
+     */
+    @FunctionalInterface
+    interface ServiceMethod {
+        Object invoke(Object[] args) throws Exception;
+    }
+}
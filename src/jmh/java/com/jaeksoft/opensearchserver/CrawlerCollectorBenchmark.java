@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.qwazr.crawler.common.Attributes;
+import com.qwazr.crawler.web.WebCrawlDefinition;
+import com.qwazr.crawler.web.WebCrawlItem;
+import com.qwazr.extractor.ParserResult;
+import com.qwazr.search.index.IndexServiceInterface;
+import com.qwazr.utils.ObjectMappers;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The buffering and the flush of the collector, measured per collected result.
+ * <p>
+ * Every call buffers one result, every "buffer" calls the buffer is flushed:
+ * the score is the cost of a result including its share of the flush.
+ * The stand-in index service serializes the posted documents, as the remote client does, and drops them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CrawlerCollectorBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int buffer;
+
+    @Param({"0", "1"})
+    public int indexWorkers;
+
+    private CrawlerResult crawlerResult;
+    private ExecutorService indexExecutor;
+    private CrawlerCollector<WebCrawlItem> collector;
+
+    @Setup
+    public void setup() throws IOException {
+        final ParserResult parserResult = BenchmarkFixtures.ossParserResult();
+        crawlerResult =
+            new CrawlerResult("https://www.opensearchserver.com/", 1, "text/html", 200, null, parserResult, null);
+
+        final IndexServiceInterface indexService = BenchmarkFixtures.service(IndexServiceInterface.class,
+            Map.of("postJson", (BenchmarkFixtures.ServiceMethod) args -> {
+                ObjectMappers.JSON.writeValue(OutputStream.nullOutputStream(), args[2]);
+                return null;
+            }));
+        indexExecutor = Executors.newCachedThreadPool();
+        final Map<String, Object> instances = Map.of(
+            Components.INDEX_SERVICE_ATTRIBUTE, indexService,
+            Components.INDEX_EXECUTOR_ATTRIBUTE, indexExecutor,
+            Components.METRICS_ATTRIBUTE, new ServerMetrics());
+        final Attributes attributes = BenchmarkFixtures.service(Attributes.class,
+            Map.of("getInstance", (BenchmarkFixtures.ServiceMethod) args -> instances.get(args[0])));
+
+        final ObjectNode definition = ObjectMappers.JSON.createObjectNode();
+        definition.put("entry_url", "https://www.opensearchserver.com/");
+        definition.putObject("variables")
+            .put("index", "benchmark")
+            .put("buffer", buffer)
+            .put("indexWorkers", indexWorkers);
+        collector = (CrawlerCollector<WebCrawlItem>) new CrawlerCollector.Web().createCrawlCollector(attributes,
+            ObjectMappers.JSON.treeToValue(definition, WebCrawlDefinition.class));
+    }
+
+    @Benchmark
+    public void index() {
+        collector.index(crawlerResult, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        collector.done();
+        indexExecutor.shutdown();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.qwazr.extractor.ParserResult;
+import com.qwazr.utils.ObjectMappers;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The work done for every collected page: the construction of the result,
+ * its size estimation, its serialization into the token buffer of the collector, its conversion to a JSON tree,
+ * and the serialization of the tree by the post.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CrawlerResultBenchmark {
+
+    private ParserResult parserResult;
+    private CrawlerResult crawlerResult;
+    private JsonNode document;
+
+    @Setup
+    public void setup() {
+        parserResult = BenchmarkFixtures.ossParserResult();
+        crawlerResult = newCrawlerResult();
+        document = ObjectMappers.JSON.valueToTree(crawlerResult);
+    }
+
+    private CrawlerResult newCrawlerResult() {
+        return new CrawlerResult("https://www.opensearchserver.com/", 1, "text/html", 200, null, parserResult, null);
+    }
+
+    @Benchmark
+    public CrawlerResult construct() {
+        return newCrawlerResult();
+    }
+
+    @Benchmark
+    public long estimateSize() {
+        return crawlerResult.estimateSize();
+    }
+
+    @Benchmark
+    public TokenBuffer toTokens() throws IOException {
+        final TokenBuffer tokens = new TokenBuffer(ObjectMappers.JSON, false);
+        ObjectMappers.JSON.writeValue(tokens, crawlerResult);
+        return tokens;
+    }
+
+    @Benchmark
+    public JsonNode toTree() {
+        return ObjectMappers.JSON.valueToTree(crawlerResult);
+    }
+
+    @Benchmark
+    public byte[] serializeTree() throws JsonProcessingException {
+        return ObjectMappers.JSON.writeValueAsBytes(document);
+    }
+
+    @Benchmark
+    public byte[] serializeResult() throws JsonProcessingException {
+        return ObjectMappers.JSON.writeValueAsBytes(crawlerResult);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.qwazr.extractor.ExtractorManager;
+import com.qwazr.extractor.ExtractorServiceInterface;
+import com.qwazr.extractor.ParserResult;
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.core.MediaType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The extraction of the oss.html fixture by the HTML parser.
+ * The shaded parser jars are read from the directory given by the "com.opensearchserver.parsers" property
+ * (the "parsers" directory filled by the package phase).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class ExtractionBenchmark {
+
+    private ExtractorServiceInterface extractorService;
+    private byte[] html;
+
+    @Setup
+    public void setup() throws Exception {
+        final Path parsersPath = Paths.get(System.getProperty("com.opensearchserver.parsers", "parsers"));
+        if (!Files.isDirectory(parsersPath))
+            throw new IllegalStateException("The parsers directory is missing: " + parsersPath.toAbsolutePath());
+        final ExtractorManager extractorManager = new ExtractorManager();
+        extractorManager.registerShadedJars(parsersPath);
+        extractorService = extractorManager.getService();
+        html = BenchmarkFixtures.ossHtml();
+    }
+
+    @Benchmark
+    public ParserResult extractHtml() throws Exception {
+        return extractorService.extract(null, new ByteArrayInputStream(html), MediaType.TEXT_HTML_TYPE);
+    }
+
+    @Benchmark
+    public byte[] digest() {
+        return FingerprintStore.digest(html);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.qwazr.crawler.web.WebCrawlerServiceInterface;
+import com.qwazr.search.index.IndexServiceInterface;
+import graphql.ExecutionResult;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The construction of the GraphQL service (schema parsing and wiring),
+ * and the execution of queries against in-memory index and crawler services.
+ * The document cache is warm after the first iteration: the query benchmarks measure the execution, not the parsing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class GraphQLServiceBenchmark {
+
+    private final static String INDEXES_QUERY =
+        "query { indexes(first: 20) { edges { cursor node } pageInfo { hasNextPage endCursor } } }";
+
+    private final static String STATS_QUERY = "query { stats { name labels { name value } value } }";
+
+    private Path configFile;
+    private ConfigService configService;
+    private ExecutorService executorService;
+    private ServerMetrics metrics;
+    private GraphQLListFetchers listFetchers;
+    private GraphQLService graphQLService;
+
+    @Setup
+    public void setup() throws IOException {
+        configFile = Files.createTempFile("benchmark", ".properties");
+        configService = new ConfigService(configFile);
+        executorService = Executors.newFixedThreadPool(4);
+        metrics = new ServerMetrics();
+        final Map<String, Object> indexes = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++)
+            indexes.put(String.format("index-%03d", i), null);
+        listFetchers = new GraphQLListFetchers(
+            BenchmarkFixtures.service(IndexServiceInterface.class, Map.of("getIndexes", indexes)),
+            BenchmarkFixtures.service(WebCrawlerServiceInterface.class, Map.of("getSessions", Map.of())),
+            executorService);
+        graphQLService = newGraphQLService();
+        checkErrors(graphQLService.query(null, INDEXES_QUERY, null));
+        checkErrors(graphQLService.query(null, STATS_QUERY, null));
+    }
+
+    private static void checkErrors(final ExecutionResult result) {
+        if (!result.getErrors().isEmpty())
+            throw new IllegalStateException(result.getErrors().toString());
+    }
+
+    private GraphQLService newGraphQLService() throws IOException {
+        return new GraphQLService(configService, executorService, metrics, listFetchers,
+            new GraphQLStatsFetchers(metrics::collect));
+    }
+
+    @Benchmark
+    public GraphQLService construct() throws IOException {
+        return newGraphQLService();
+    }
+
+    @Benchmark
+    public ExecutionResult queryIndexes() {
+        return graphQLService.query(null, INDEXES_QUERY, null);
+    }
+
+    @Benchmark
+    public ExecutionResult queryStats() {
+        return graphQLService.query(null, STATS_QUERY, null);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        executorService.shutdown();
+        Files.deleteIfExists(configFile);
+    }
+}
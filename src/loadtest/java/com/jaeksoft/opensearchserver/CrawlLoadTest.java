@@ -0,0 +1,229 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.qwazr.crawler.web.WebCrawlDefinition;
+import com.qwazr.search.index.IndexServiceInterface;
+import com.qwazr.utils.ObjectMappers;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end crawl throughput: a crawl session of a {@link Components} instance
+ * (web crawler, collector, extraction pool, parsers) against a {@link SyntheticSite} served on the loopback interface.
+ * <p>
+ * The index service is an in-memory stand-in which serializes the posted documents, as the remote client does,
+ * waits for the optional simulated index latency, and counts the documents.
+ * The report (throughput, flush latency percentiles, peak heap) is printed and written as JSON.
+ * <p>
+ * The system properties:
+ * <ul>
+ * <li>loadtest.pages: the number of HTML pages (1000)</li>
+ * <li>loadtest.fanout: the number of links to child pages per page (10)</li>
+ * <li>loadtest.binaryEvery: one PDF document every n pages, 0 for none (5)</li>
+ * <li>loadtest.buffer, loadtest.indexWorkers: the collector variables (100, 1)</li>
+ * <li>loadtest.indexLatencyMs: the simulated duration of a post (0)</li>
+ * <li>loadtest.timeoutSec: the maximum duration of the crawl (600)</li>
+ * <li>loadtest.report: the JSON report (target/crawl-load-test.json)</li>
+ * <li>loadtest.config.*: the properties of the configuration, e.g. loadtest.config.extractionConcurrency</li>
+ * <li>com.opensearchserver.parsers: the directory of the shaded parser jars (parsers)</li>
+ * </ul>
+ */
+public class CrawlLoadTest {
+
+    private final static String SESSION_NAME = "loadtest";
+    private final static String CONFIG_PREFIX = "loadtest.config.";
+
+    public static void main(final String[] args) throws Exception {
+        final int pages = Integer.getInteger("loadtest.pages", 1000);
+        final int fanout = Integer.getInteger("loadtest.fanout", 10);
+        final int binaryEvery = Integer.getInteger("loadtest.binaryEvery", 5);
+        final int buffer = Integer.getInteger("loadtest.buffer", 100);
+        final int indexWorkers = Integer.getInteger("loadtest.indexWorkers", 1);
+        final long indexLatencyMs = Long.getLong("loadtest.indexLatencyMs", 0);
+        final long timeoutSec = Long.getLong("loadtest.timeoutSec", 600);
+        final Path reportPath = Paths.get(System.getProperty("loadtest.report", "target/crawl-load-test.json"));
+        final Path parsersPath = Paths.get(System.getProperty("com.opensearchserver.parsers", "parsers"));
+        if (!Files.isDirectory(parsersPath))
+            throw new IllegalStateException("The parsers directory is missing: " + parsersPath.toAbsolutePath());
+
+        final Path dataDirectory = Files.createTempDirectory("crawl-load-test");
+        writeConfig(dataDirectory, parsersPath);
+
+        final LongAdder postedDocuments = new LongAdder();
+        final IndexServiceInterface indexService = postCounter(postedDocuments, indexLatencyMs);
+
+        final Map<String, Object> report = new LinkedHashMap<>();
+        final boolean complete;
+        try (final SyntheticSite site = new SyntheticSite(pages, fanout, binaryEvery);
+             final Components components = new Components(dataDirectory) {
+                 @Override
+                 public IndexServiceInterface getIndexService() {
+                     return indexService;
+                 }
+             }) {
+
+            final int expectedDocuments = site.getDocumentCount();
+            final ObjectNode definition = ObjectMappers.JSON.createObjectNode();
+            definition.put("entry_url", site.getEntryUrl().toString());
+            definition.put("max_depth", Integer.MAX_VALUE);
+            definition.put("max_url_number", expectedDocuments + 1);
+            definition.put("crawl_collector_factory", CrawlerCollector.Web.class.getName());
+            definition.putObject("variables")
+                .put("index", SESSION_NAME)
+                .put("buffer", buffer)
+                .put("indexWorkers", indexWorkers);
+
+            // The components are created before the measure
+            components.getWebCrawlerService();
+            resetPeakHeap();
+            final long start = System.nanoTime();
+            components.getWebCrawlerService().runSession(SESSION_NAME,
+                ObjectMappers.JSON.treeToValue(definition, WebCrawlDefinition.class));
+
+            // The collector posts the last buffer when the session is done
+            final long deadline = start + TimeUnit.SECONDS.toNanos(timeoutSec);
+            while (postedDocuments.sum() < expectedDocuments && System.nanoTime() < deadline)
+                Thread.sleep(50);
+            final long elapsedNanos = System.nanoTime() - start;
+            complete = postedDocuments.sum() >= expectedDocuments;
+
+            final ServerMetrics metrics = components.getServerMetrics();
+            final double seconds = elapsedNanos / 1e9;
+            report.put("pages", pages);
+            report.put("binaryDocuments", site.getBinaryCount());
+            report.put("buffer", buffer);
+            report.put("indexWorkers", indexWorkers);
+            report.put("indexLatencyMs", indexLatencyMs);
+            report.put("expectedDocuments", expectedDocuments);
+            report.put("postedDocuments", postedDocuments.sum());
+            report.put("collectedPages", metrics.pagesCollected.sum());
+            report.put("parsingErrors", metrics.parsingErrors.sum());
+            report.put("flushErrors", metrics.flushErrors.sum());
+            report.put("elapsedSeconds", round(seconds));
+            report.put("pagesPerSecond", round(metrics.pagesCollected.sum() / seconds));
+            report.put("documentsPerSecond", round(postedDocuments.sum() / seconds));
+            report.put("flushCount", metrics.flushTime.getCount());
+            report.put("flushMillis", percentiles(metrics.flushTime));
+            report.put("extractionMillis", percentiles(metrics.extractionTime));
+            report.put("collectMillis", percentiles(metrics.collectTime));
+            report.put("peakHeapMegabytes", round(getPeakHeap() / 1048576d));
+        } finally {
+            deleteDirectory(dataDirectory);
+        }
+
+        final String json = ObjectMappers.JSON.writerWithDefaultPrettyPrinter().writeValueAsString(report);
+        System.out.println(json);
+        if (reportPath.getParent() != null)
+            Files.createDirectories(reportPath.getParent());
+        Files.writeString(reportPath, json);
+        if (!complete) {
+            System.err.println("The crawl did not complete within " + timeoutSec + " seconds");
+            System.exit(1);
+        }
+    }
+
+    private static void writeConfig(final Path dataDirectory, final Path parsersPath) throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty("parsersDirectoryPath", parsersPath.toAbsolutePath().toString());
+        System.getProperties().stringPropertyNames().forEach(name -> {
+            if (name.startsWith(CONFIG_PREFIX))
+                properties.setProperty(name.substring(CONFIG_PREFIX.length()), System.getProperty(name));
+        });
+        try (final OutputStream output = Files.newOutputStream(dataDirectory.resolve(
+            System.getProperty("com.opensearchserver.config", "config.properties")))) {
+            properties.store(output, "Crawl load test");
+        }
+    }
+
+    private static IndexServiceInterface postCounter(final LongAdder postedDocuments, final long latencyMs) {
+        return (IndexServiceInterface) Proxy.newProxyInstance(IndexServiceInterface.class.getClassLoader(),
+            new Class<?>[]{IndexServiceInterface.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "postJson":
+                        final ArrayNode documents = (ArrayNode) args[2];
+                        ObjectMappers.JSON.writeValue(OutputStream.nullOutputStream(), documents);
+                        if (latencyMs > 0)
+                            Thread.sleep(latencyMs);
+                        postedDocuments.add(documents.size());
+                        return null;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return "IndexService(load test)";
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    private static Map<String, Object> percentiles(final LatencyHistogram histogram) {
+        final Map<String, Object> percentiles = new LinkedHashMap<>();
+        final long count = histogram.getCount();
+        percentiles.put("count", count);
+        percentiles.put("mean", count == 0 ? 0 : round(histogram.getSum() / 1e6 / count));
+        for (final double quantile : new double[]{0.5, 0.9, 0.99, 1})
+            percentiles.put("p" + Math.round(quantile * 100), round(histogram.getQuantile(quantile) / 1e6));
+        return percentiles;
+    }
+
+    private static double round(final double value) {
+        return Math.round(value * 100) / 100d;
+    }
+
+    private static List<MemoryPoolMXBean> getHeapPools() {
+        return ManagementFactory.getMemoryPoolMXBeans().stream()
+            .filter(pool -> pool.getType() == MemoryType.HEAP)
+            .collect(Collectors.toList());
+    }
+
+    private static void resetPeakHeap() {
+        System.gc();
+        getHeapPools().forEach(MemoryPoolMXBean::resetPeakUsage);
+    }
+
+    /**
+     * @return the sum of the peak usage of the heap pools (an upper bound of the peak heap)
+     */
+    private static long getPeakHeap() {
+        return getHeapPools().stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+    }
+
+    private static void deleteDirectory(final Path directory) throws IOException {
+        try (final Stream<Path> files = Files.walk(directory)) {
+            files.sorted((p1, p2) -> p2.compareTo(p1)).forEach(file -> file.toFile().delete());
+        }
+    }
+}
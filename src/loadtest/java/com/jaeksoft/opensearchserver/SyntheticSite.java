@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A generated web site served by an embedded HTTP server on the loopback interface.
+ * <p>
+ * The pages are a tree: the page n links to the pages n * fanout + 1 to n * fanout + fanout.
+ * Every page is the oss.html fixture with a distinct title and text, so neither the fingerprints
+ * nor the extraction cache can skip it.
+ * One page every "binaryEvery" pages also links to a generated PDF document.
+ */
+final class SyntheticSite implements AutoCloseable {
+
+    private final static String OSS_HTML = "/com/jaeksoft/searchlib/test/oss.html";
+
+    private final static Pattern PAGE_PATH = Pattern.compile("/page/(\\d+)\\.html");
+    private final static Pattern DOCUMENT_PATH = Pattern.compile("/doc/(\\d+)\\.pdf");
+
+    private final int pages;
+    private final int fanout;
+    private final int binaryEvery;
+    private final String template;
+    private final List<String> sentences;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * @param pages       the number of HTML pages
+     * @param fanout      the number of links from a page to its child pages
+     * @param binaryEvery one page every "binaryEvery" pages links to a PDF document, 0 for no document
+     * @throws IOException if the server cannot be started
+     */
+    SyntheticSite(final int pages, final int fanout, final int binaryEvery) throws IOException {
+        this.pages = pages;
+        this.fanout = Math.max(1, fanout);
+        this.binaryEvery = binaryEvery;
+        try (final InputStream input = SyntheticSite.class.getResourceAsStream(OSS_HTML)) {
+            if (input == null)
+                throw new IllegalStateException("The fixture is missing: " + OSS_HTML);
+            template = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        sentences = new ArrayList<>();
+        for (final String sentence : template.replaceAll("(?s)<(script|style).*?</\\1>", " ")
+            .replaceAll("<[^>]*>", " ")
+            .replaceAll("&#?\\w+;", " ")
+            .replaceAll("\\s+", " ")
+            .trim()
+            .split("(?<=[.!?]) "))
+            if (sentence.length() > 20)
+                sentences.add(sentence);
+        executor = Executors.newFixedThreadPool(8);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return the URL of the first page
+     */
+    URI getEntryUrl() {
+        return URI.create("http://" + server.getAddress().getHostString() + ':' + server.getAddress().getPort()
+            + "/page/0.html");
+    }
+
+    /**
+     * @return the number of documents (pages and PDF) reachable from the first page
+     */
+    int getDocumentCount() {
+        return pages + getBinaryCount();
+    }
+
+    int getBinaryCount() {
+        return binaryEvery <= 0 ? 0 : (pages + binaryEvery - 1) / binaryEvery;
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            final String path = exchange.getRequestURI().getPath();
+            Matcher matcher = PAGE_PATH.matcher(path);
+            if (matcher.matches()) {
+                final int page = Integer.parseInt(matcher.group(1));
+                if (page < pages) {
+                    send(exchange, "text/html; charset=UTF-8", page(page));
+                    return;
+                }
+            }
+            matcher = DOCUMENT_PATH.matcher(path);
+            if (matcher.matches()) {
+                final int page = Integer.parseInt(matcher.group(1));
+                if (page < pages && hasDocument(page)) {
+                    send(exchange, "application/pdf", document(page));
+                    return;
+                }
+            }
+            exchange.sendResponseHeaders(404, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void send(final HttpExchange exchange, final String contentType, final byte[] body)
+        throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, body.length);
+        try (final OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    private boolean hasDocument(final int page) {
+        return binaryEvery > 0 && page % binaryEvery == 0;
+    }
+
+    private String sentence(final int page, final int i) {
+        return sentences.get((page * 7 + i * 13) % sentences.size());
+    }
+
+    byte[] page(final int page) {
+        final StringBuilder links = new StringBuilder("<div class=\"synthetic\"><p>");
+        for (int i = 0; i < 5; i++)
+            links.append(sentence(page, i)).append(' ');
+        links.append("Page ").append(page).append(".</p><ul>");
+        for (int child = page * fanout + 1; child <= page * fanout + fanout && child < pages; child++)
+            links.append("<li><a href=\"/page/").append(child).append(".html\">Page ").append(child)
+                .append("</a></li>");
+        if (hasDocument(page))
+            links.append("<li><a href=\"/doc/").append(page).append(".pdf\">Document ").append(page)
+                .append("</a></li>");
+        links.append("</ul></div>");
+        return template.replaceFirst("<title>[^<]*</title>", "<title>Synthetic page " + page + "</title>")
+            .replaceFirst("(?i)<body([^>]*)>", "<body$1>" + Matcher.quoteReplacement(links.toString()))
+            .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a one page PDF document with a few lines of text
+     */
+    byte[] document(final int page) {
+        final StringBuilder text = new StringBuilder("BT /F1 12 Tf 14 TL 72 720 Td (Document ").append(page)
+            .append(") Tj");
+        for (int i = 0; i < 20; i++)
+            text.append(" T* (").append(sentence(page, i).replaceAll("[()\\\\]", "")
+                .replaceAll("[^\\x20-\\x7e]", " ")).append(") Tj");
+        text.append(" ET");
+        final String[] objects = {
+            "<< /Type /Catalog /Pages 2 0 R >>",
+            "<< /Type /Pages /Kids [3 0 R] /Count 1 >>",
+            "<< /Type /Page /Parent 2 0 R /MediaBox [0 0 612 792] /Contents 4 0 R"
+                + " /Resources << /Font << /F1 5 0 R >> >> >>",
+            "<< /Length " + text.length() + " >>\nstream\n" + text + "\nendstream",
+            "<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica >>"};
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final long[] offsets = new long[objects.length];
+        write(output, "%PDF-1.4\n");
+        for (int i = 0; i < objects.length; i++) {
+            offsets[i] = output.size();
+            write(output, (i + 1) + " 0 obj\n" + objects[i] + "\nendobj\n");
+        }
+        final int xref = output.size();
+        write(output, "xref\n0 " + (objects.length + 1) + "\n0000000000 65535 f \n");
+        for (final long offset : offsets)
+            write(output, String.format("%010d 00000 n \n", offset));
+        write(output, "trailer\n<< /Size " + (objects.length + 1) + " /Root 1 0 R >>\nstartxref\n" + xref
+            + "\n%%EOF\n");
+        return output.toByteArray();
+    }
+
+    private static void write(final OutputStream output, final String text) {
+        try {
+            output.write(text.getBytes(StandardCharsets.ISO_8859_1));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
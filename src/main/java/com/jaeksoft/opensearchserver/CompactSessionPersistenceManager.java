@@ -0,0 +1,505 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.qwazr.utils.LoggerUtils;
+import io.undertow.servlet.api.SessionPersistenceManager;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.ws.rs.InternalServerErrorException;
+
+/**
+ * Persistence of the web sessions in an append-only log.
+ * <p>
+ * Every record is length-prefixed and checksummed: a session (its expiration and its serialized attributes),
+ * a new expiration of an unchanged session, or a removal. An incomplete trailing record (crash) is dropped.
+ * The log is compacted when it contains more than twice the number of live sessions.
+ * <p>
+ * The sessions are written behind: the sessions handed by the server are serialized and written by a background
+ * thread, and only the sessions whose attributes or expiration have changed are appended.
+ * At startup, the log is read without deserializing the attributes:
+ * the attributes of a session are deserialized when the server restores the session, on its first request.
+ * A restored session which is no longer in the sessions of the server has been invalidated and is removed,
+ * a session which has not been restored is kept until it expires.
+ */
+@ThreadSafe
+public class CompactSessionPersistenceManager implements SessionPersistenceManager, AutoCloseable {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(CompactSessionPersistenceManager.class);
+
+    private final static String LOG_FILE = "sessions.log";
+    private final static int COMPACTION_MIN_RECORDS = 1000;
+
+    private final static byte PUT = 1;
+    private final static byte TOUCH = 2;
+    private final static byte REMOVE = 3;
+
+    private final Path logPath;
+    private final Map<String, Map<String, StoredSession>> deployments;
+    private final ExecutorService writer;
+    private FileChannel channel;
+    private long records;
+    private boolean loaded;
+
+    public CompactSessionPersistenceManager(final Path directory) throws IOException {
+        if (!Files.exists(directory))
+            Files.createDirectories(directory);
+        this.logPath = directory.resolve(LOG_FILE);
+        this.deployments = new HashMap<>();
+        this.writer = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "session-writer"));
+    }
+
+    /**
+     * Read the log once: the attributes are not deserialized, their position in the log is kept
+     */
+    synchronized void load() throws IOException {
+        if (loaded)
+            return;
+        final long start = System.nanoTime();
+        channel = FileChannel.open(logPath,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final long size = channel.size();
+        long position = 0;
+        if (size > 0) {
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            while (buffer.remaining() >= Integer.BYTES * 2) {
+                final int length = buffer.getInt();
+                final int crc = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining())
+                    break;
+                final byte[] payload = new byte[length];
+                buffer.get(payload);
+                if (crc != crc(payload))
+                    break;
+                apply(payload, position + Integer.BYTES * 2);
+                position = buffer.position();
+                records++;
+            }
+        }
+        if (position != size) {
+            LOGGER.warning(() -> "Truncating an incomplete session record: " + logPath);
+            channel.truncate(position);
+        }
+        channel.position(position);
+        loaded = true;
+        final long live = countLive();
+        LOGGER.info(() -> live + " web session(s) read in "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        if (records > COMPACTION_MIN_RECORDS && records > live * 2)
+            compact();
+    }
+
+    private void apply(final byte[] payload, final long payloadPosition) throws IOException {
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+        final byte op = input.readByte();
+        final String deploymentName = input.readUTF();
+        final String sessionId = input.readUTF();
+        final Map<String, StoredSession> sessions = deployments.computeIfAbsent(deploymentName, d -> new HashMap<>());
+        switch (op) {
+            case PUT:
+                final long expiration = input.readLong();
+                final int dataLength = input.readInt();
+                // The attributes are at the end of the payload
+                final long dataPosition = payloadPosition + payload.length - dataLength;
+                sessions.put(sessionId, new StoredSession(expiration, dataPosition, dataLength,
+                    digest(Arrays.copyOfRange(payload, payload.length - dataLength, payload.length))));
+                break;
+            case TOUCH:
+                final StoredSession stored = sessions.get(sessionId);
+                if (stored != null)
+                    stored.expiration = input.readLong();
+                break;
+            case REMOVE:
+                sessions.remove(sessionId);
+                break;
+            default:
+                throw new IOException("Unknown session record: " + op);
+        }
+    }
+
+    private long countLive() {
+        long live = 0;
+        for (final Map<String, StoredSession> sessions : deployments.values())
+            live += sessions.size();
+        return live;
+    }
+
+    private static int crc(final byte[] payload) {
+        final CRC32 crc32 = new CRC32();
+        crc32.update(payload);
+        return (int) crc32.getValue();
+    }
+
+    private static byte[] digest(final byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new InternalServerErrorException("Digest not available: SHA-256", e);
+        }
+    }
+
+    /**
+     * Append a record
+     *
+     * @return the position of the attributes in the log (they end the record)
+     */
+    private long append(final byte op,
+                        final String deploymentName,
+                        final String sessionId,
+                        final long expiration,
+                        final byte[] data) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (data == null ? 0 : data.length));
+        try (final DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeByte(op);
+            output.writeUTF(deploymentName);
+            output.writeUTF(sessionId);
+            if (op != REMOVE)
+                output.writeLong(expiration);
+            if (op == PUT) {
+                output.writeInt(data.length);
+                output.write(data);
+            }
+        }
+        final byte[] payload = bytes.toByteArray();
+        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES * 2 + payload.length);
+        buffer.putInt(payload.length).putInt(crc(payload)).put(payload).flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        records++;
+        return channel.position() - (data == null ? 0 : data.length);
+    }
+
+    private synchronized byte[] read(final StoredSession stored) throws IOException {
+        if (channel == null)
+            throw new IOException("The session log is closed: " + logPath);
+        final ByteBuffer buffer = ByteBuffer.allocate(stored.length);
+        long position = stored.position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of the session log: " + logPath);
+            position += read;
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Rewrite the live sessions in a new log
+     */
+    private synchronized void compact() throws IOException {
+        final Path tempPath = logPath.resolveSibling(LOG_FILE + ".tmp");
+        final FileChannel oldChannel = channel;
+        final Map<StoredSession, byte[]> liveData = new HashMap<>();
+        for (final Map<String, StoredSession> sessions : deployments.values())
+            for (final StoredSession stored : sessions.values())
+                liveData.put(stored, read(stored));
+        channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        records = 0;
+        try {
+            for (final Map.Entry<String, Map<String, StoredSession>> deployment : deployments.entrySet()) {
+                for (final Map.Entry<String, StoredSession> session : deployment.getValue().entrySet()) {
+                    final StoredSession stored = session.getValue();
+                    final byte[] data = liveData.get(stored);
+                    stored.position = append(PUT, deployment.getKey(), session.getKey(), stored.expiration, data);
+                }
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            channel.close();
+            channel = oldChannel;
+            throw e;
+        }
+        oldChannel.close();
+        Files.move(tempPath, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info(() -> "Session log compacted: " + records + " record(s)");
+    }
+
+    /**
+     * Serialize the attributes one by one, a non serializable attribute is skipped
+     */
+    private static byte[] serialize(final Map<String, Object> attributes) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final Map<String, byte[]> serialized = new LinkedHashMap<>();
+        for (final Map.Entry<String, Object> attribute : attributes.entrySet()) {
+            try (final ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+                output.writeObject(attribute.getValue());
+            } catch (NotSerializableException e) {
+                LOGGER.fine(() -> "The session attribute is not serializable: " + attribute.getKey());
+                bytes.reset();
+                continue;
+            }
+            serialized.put(attribute.getKey(), bytes.toByteArray());
+            bytes.reset();
+        }
+        try (final DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeInt(serialized.size());
+            for (final Map.Entry<String, byte[]> attribute : serialized.entrySet()) {
+                output.writeUTF(attribute.getKey());
+                output.writeInt(attribute.getValue().length);
+                output.write(attribute.getValue());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Map<String, Object> deserialize(final byte[] data, final ClassLoader classLoader)
+        throws IOException, ClassNotFoundException {
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+        final int count = input.readInt();
+        final Map<String, Object> attributes = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            final String name = input.readUTF();
+            final byte[] value = new byte[input.readInt()];
+            input.readFully(value);
+            try (final ObjectInputStream objectInput = new ClassLoaderObjectInputStream(
+                new ByteArrayInputStream(value), classLoader)) {
+                attributes.put(name, objectInput.readObject());
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Hand the sessions to the writer thread
+     */
+    @Override
+    public void persistSessions(final String deploymentName, final Map<String, PersistentSession> sessionData) {
+        final Map<String, PersistentSession> sessions = new HashMap<>(sessionData);
+        writer.execute(() -> {
+            try {
+                write(deploymentName, sessions);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.SEVERE, e, () -> "Cannot persist the sessions of " + deploymentName);
+            }
+        });
+    }
+
+    private synchronized void write(final String deploymentName, final Map<String, PersistentSession> sessionData)
+        throws IOException {
+        load();
+        final long start = System.nanoTime();
+        final long now = System.currentTimeMillis();
+        final Map<String, StoredSession> sessions = deployments.computeIfAbsent(deploymentName, d -> new HashMap<>());
+        int written = 0;
+        for (final Map.Entry<String, PersistentSession> session : sessionData.entrySet()) {
+            final Date expirationDate = session.getValue().getExpiration();
+            final long expiration = expirationDate == null ? Long.MAX_VALUE : expirationDate.getTime();
+            if (expiration < now)
+                continue;
+            final byte[] data = serialize(session.getValue().getSessionData());
+            final byte[] digest = digest(data);
+            final StoredSession previous = sessions.get(session.getKey());
+            if (previous != null && Arrays.equals(previous.digest, digest)) {
+                previous.live = true;
+                if (previous.expiration != expiration) {
+                    append(TOUCH, deploymentName, session.getKey(), expiration, null);
+                    previous.expiration = expiration;
+                    written++;
+                }
+                continue;
+            }
+            final StoredSession stored = new StoredSession(expiration,
+                append(PUT, deploymentName, session.getKey(), expiration, data), data.length, digest);
+            stored.live = true;
+            sessions.put(session.getKey(), stored);
+            written++;
+        }
+        // The sessions used by the server and now missing have been invalidated
+        final Iterator<Map.Entry<String, StoredSession>> iterator = sessions.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, StoredSession> session = iterator.next();
+            if (sessionData.containsKey(session.getKey()))
+                continue;
+            if (session.getValue().live || session.getValue().expiration < now) {
+                append(REMOVE, deploymentName, session.getKey(), 0, null);
+                iterator.remove();
+                written++;
+            }
+        }
+        channel.force(false);
+        final int writtenRecords = written;
+        LOGGER.info(() -> writtenRecords + " session record(s) written for " + sessionData.size()
+            + " session(s) in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        final long live = countLive();
+        if (records > COMPACTION_MIN_RECORDS && records > live * 2)
+            compact();
+    }
+
+    /**
+     * @return the sessions which have not expired, their attributes are read when the session is restored
+     */
+    @Override
+    public synchronized Map<String, PersistentSession> loadSessionAttributes(final String deploymentName,
+                                                                             final ClassLoader classLoader) {
+        try {
+            load();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, e, () -> "Cannot read the session log: " + logPath);
+            return new HashMap<>();
+        }
+        final Map<String, StoredSession> sessions = deployments.get(deploymentName);
+        final Map<String, PersistentSession> result = new HashMap<>();
+        if (sessions == null)
+            return result;
+        final long now = System.currentTimeMillis();
+        sessions.forEach((sessionId, stored) -> {
+            if (stored.expiration >= now)
+                result.put(sessionId, new PersistentSession(new Date(stored.expiration),
+                    new LazyAttributes(sessionId, stored, classLoader)));
+        });
+        return result;
+    }
+
+    @Override
+    public void clear(final String deploymentName) {
+        writer.execute(() -> {
+            synchronized (this) {
+                try {
+                    load();
+                    final Map<String, StoredSession> sessions = deployments.remove(deploymentName);
+                    if (sessions == null)
+                        return;
+                    for (final String sessionId : sessions.keySet())
+                        append(REMOVE, deploymentName, sessionId, 0, null);
+                    channel.force(false);
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, e, () -> "Cannot clear the sessions of " + deploymentName);
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait for the pending writes, then close the log
+     */
+    @Override
+    public void close() throws IOException, InterruptedException {
+        writer.shutdown();
+        if (!writer.awaitTermination(5, TimeUnit.MINUTES))
+            LOGGER.warning(() -> "The sessions have not been written in time: " + logPath);
+        synchronized (this) {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            loaded = false;
+            deployments.clear();
+            records = 0;
+        }
+    }
+
+    private final static class StoredSession {
+
+        private volatile long expiration;
+        private volatile long position;
+        private final int length;
+        private final byte[] digest;
+        // True when the session is known by the server: written from its sessions, or restored
+        private volatile boolean live;
+
+        private StoredSession(final long expiration, final long position, final int length, final byte[] digest) {
+            this.expiration = expiration;
+            this.position = position;
+            this.length = length;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * The attributes of a session, deserialized on the first access
+     */
+    private final class LazyAttributes extends AbstractMap<String, Object> {
+
+        private final String sessionId;
+        private final StoredSession stored;
+        private final ClassLoader classLoader;
+        private Map<String, Object> attributes;
+
+        private LazyAttributes(final String sessionId, final StoredSession stored, final ClassLoader classLoader) {
+            this.sessionId = sessionId;
+            this.stored = stored;
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        public synchronized Set<Map.Entry<String, Object>> entrySet() {
+            if (attributes == null) {
+                try {
+                    attributes = deserialize(read(stored), classLoader);
+                } catch (IOException | ClassNotFoundException e) {
+                    LOGGER.log(Level.WARNING, e, () -> "Cannot read the attributes of the session " + sessionId);
+                    attributes = new HashMap<>();
+                }
+                stored.live = true;
+            }
+            return attributes.entrySet();
+        }
+    }
+
+    private final static class ClassLoaderObjectInputStream extends ObjectInputStream {
+
+        private final ClassLoader classLoader;
+
+        private ClassLoaderObjectInputStream(final InputStream input, final ClassLoader classLoader)
+            throws IOException {
+            super(input);
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            if (classLoader == null)
+                return super.resolveClass(desc);
+            try {
+                return Class.forName(desc.getName(), false, classLoader);
+            } catch (ClassNotFoundException e) {
+                return super.resolveClass(desc);
+            }
+        }
+    }
+}
@@ -18,13 +18,11 @@ package com.jaeksoft.opensearchserver;
 import com.qwazr.crawler.web.WebCrawlerManager;
 import com.qwazr.crawler.web.WebCrawlerServiceInterface;
 import com.qwazr.crawler.web.WebCrawlerSingleClient;
-import com.qwazr.extractor.ExtractorManager;
 import com.qwazr.extractor.ExtractorServiceInterface;
 import com.qwazr.library.AbstractLibrary;
 import com.qwazr.search.index.IndexManager;
 import com.qwazr.search.index.IndexServiceInterface;
 import com.qwazr.search.index.IndexSingleClient;
-import com.qwazr.server.InFileSessionPersistenceManager;
 import com.qwazr.server.RemoteService;
 import com.qwazr.utils.LoggerUtils;
 import com.qwazr.utils.concurrent.ConsumerEx;
@@ -35,10 +33,10 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -48,20 +46,38 @@ import javax.ws.rs.InternalServerErrorException;
 public class Components implements Closeable {
 
     public final static String INDEX_SERVICE_ATTRIBUTE = "indexService";
+    public final static String INDEX_EXECUTOR_ATTRIBUTE = "indexExecutor";
     public final static String EXTRACTOR_SERVICE_ATTRIBUTE = "extractorService";
+    public final static String EXTRACTION_POOL_ATTRIBUTE = "extractionPool";
+    public final static String FINGERPRINT_STORE_ATTRIBUTE = "fingerprintStore";
+    public final static String EXTRACTION_CACHE_ATTRIBUTE = "extractionCache";
+    public final static String SPOOL_DIRECTORY_ATTRIBUTE = "spoolDirectory";
+    public final static String METRICS_ATTRIBUTE = "metrics";
+    public final static String INDEX_WRITE_LISTENER_ATTRIBUTE = "indexWriteListener";
 
     private final static String CRAWLER_DIRECTORY = "crawlers";
     private final static String WEB_SESSIONS_DIRECTORY = "web-sessions";
     private final static String PARSERS_DIRECTORY = "parsers";
+    private final static String PARSER_REGISTRY_DIRECTORY = "parser-registry";
+    private final static String FINGERPRINT_STORE_FILE = "fingerprints.db";
+    private final static String EXTRACTION_CACHE_DIRECTORY = "extraction-cache";
+    private final static String SPOOL_DIRECTORY = "crawl-spool";
+    private final static long SPOOL_REPLAY_PERIOD_MS = TimeUnit.MINUTES.toMillis(1);
 
     private final static Logger LOGGER = LoggerUtils.getLogger(Components.class);
 
     private final Path dataDirectory;
+    private final ServerMetrics serverMetrics = new ServerMetrics();
 
     private final List<AtomicProvider<?>> providers = new ArrayList<>();
-    private final LinkedList<AtomicProvider<?>> providersWithAutoCloseableValue = new LinkedList<>();
+    private final Deque<AtomicProvider<?>> providersWithAutoCloseableValue = new ConcurrentLinkedDeque<>();
 
-    private final AtomicProvider<ExecutorService> executorService = new AtomicProvider<>();
+    private final AtomicProvider<ManagedExecutor> indexExecutor = new AtomicProvider<>();
+    private final AtomicProvider<ManagedExecutor> crawlerExecutor = new AtomicProvider<>();
+    private final AtomicProvider<ManagedExecutor> extractionExecutor = new AtomicProvider<>();
+    private final AtomicProvider<ManagedExecutor> graphqlExecutor = new AtomicProvider<>();
+    private final List<AtomicProvider<ManagedExecutor>> executors =
+        List.of(indexExecutor, crawlerExecutor, extractionExecutor, graphqlExecutor);
 
     private final AtomicProvider<ConfigService> configService = new AtomicProvider<>();
 
@@ -70,11 +86,17 @@ public class Components implements Closeable {
 
     private final AtomicProvider<WebCrawlerManager> webCrawlerManager = new AtomicProvider<>();
     private final AtomicProvider<WebCrawlerServiceInterface> webCrawlerService = new AtomicProvider<>();
+    private final AtomicProvider<FingerprintStore> fingerprintStore = new AtomicProvider<>();
+    private final AtomicProvider<CrawlerSpoolReplayer> crawlerSpoolReplayer = new AtomicProvider<>();
 
-    private final AtomicProvider<ExtractorManager> extractorManager = new AtomicProvider<>();
+    private final AtomicProvider<ParserRegistry> parserRegistry = new AtomicProvider<>();
     private final AtomicProvider<ExtractorServiceInterface> extractorService = new AtomicProvider<>();
+    private final AtomicProvider<ExtractionPool> extractionPool = new AtomicProvider<>();
+    private final AtomicProvider<ExtractionCache> extractionCache = new AtomicProvider<>();
 
     private final AtomicProvider<GraphQLService> graphqlService = new AtomicProvider<>();
+    private final AtomicProvider<GraphQLListFetchers> graphqlListFetchers = new AtomicProvider<>();
+    private final AtomicProvider<GraphQLSearchFetchers> graphqlSearchFetchers = new AtomicProvider<>();
 
     private final AtomicProvider<SessionPersistenceManager> sessionPersistenceManager = new AtomicProvider<>();
 
@@ -104,15 +126,22 @@ public class Components implements Closeable {
                 if (value != null)
                     return value;
                 try {
-                    value = defaultSupplier.get();
-                    if (value instanceof AutoCloseable)
+                    final long start = System.nanoTime();
+                    final T newValue = defaultSupplier.get();
+                    if (newValue instanceof AbstractLibrary)
+                        ((AbstractLibrary) newValue).load();
+                    // The warm-up creates the components concurrently
+                    if (newValue instanceof AutoCloseable)
                         providersWithAutoCloseableValue.addFirst(this);
-                    if (value instanceof AbstractLibrary)
-                        ((AbstractLibrary) value).load();
+                    // Published last: the lock-free readers only see fully initialized components
+                    value = newValue;
+                    final long durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    final String component = newValue.getClass().getName();
+                    LOGGER.info(() -> "Component created in " + durationMs + " ms: " + component);
+                    return newValue;
                 } catch (Exception e) {
                     throw new InternalServerErrorException("Cannot create the component", e);
                 }
-                return value;
             }
         }
 
@@ -153,8 +182,75 @@ public class Components implements Closeable {
         return directory;
     }
 
-    private ExecutorService getExecutorService() {
-        return executorService.get(Executors::newCachedThreadPool);
+    private ExecutorService getIndexExecutorService() {
+        return indexExecutor.get(
+            () -> new ManagedExecutor("index", getConfigService().getIndexExecutorConfig())).getExecutorService();
+    }
+
+    private ExecutorService getCrawlerExecutorService() {
+        return crawlerExecutor.get(
+            () -> new ManagedExecutor("crawler", getConfigService().getCrawlerExecutorConfig())).getExecutorService();
+    }
+
+    private ExecutorService getExtractionExecutorService() {
+        return extractionExecutor.get(
+            () -> new ManagedExecutor("extraction", getConfigService().getExtractionExecutorConfig()))
+            .getExecutorService();
+    }
+
+    protected ExecutorService getGraphQLExecutorService() {
+        return graphqlExecutor.get(
+            () -> new ManagedExecutor("graphql", getConfigService().getGraphQLExecutorConfig())).getExecutorService();
+    }
+
+    public ServerMetrics getServerMetrics() {
+        return serverMetrics;
+    }
+
+    /**
+     * Send the metrics of the server and of the components already created
+     *
+     * @param sink the reader of the metrics
+     */
+    public void collectMetrics(final ServerMetrics.Sink sink) {
+        serverMetrics.collect(sink);
+        final List<ManagedExecutor.Status> executorStatus = getExecutorStatus();
+        executorStatus.forEach(status -> sink.gauge("oss_executor_pool_size", "Threads of the executor",
+            status.poolSize, "executor", status.name));
+        executorStatus.forEach(status -> sink.gauge("oss_executor_active_count", "Running tasks of the executor",
+            status.activeCount, "executor", status.name));
+        executorStatus.forEach(status -> sink.gauge("oss_executor_queue_size", "Queued tasks of the executor",
+            status.queueSize, "executor", status.name));
+        executorStatus.forEach(status -> sink.counter("oss_executor_completed_total",
+            "Completed tasks of the executor", status.completedTaskCount, "executor", status.name));
+        extractionPool.ifPresent(true, pool -> sink.gauge("oss_extraction_inflight_bytes",
+            "Bytes waiting for or being extracted", pool.getInflightBytes()));
+        parserRegistry.ifPresent(true, registry -> sink.gauge("oss_parser_jars_loaded",
+            "Parser jars loaded by the registry", registry.getLoadedCount()));
+        extractionCache.ifPresent(true, cache -> {
+            sink.counter("oss_extraction_cache_memory_hits_total", "Hits of the memory tier", cache.getMemoryHits());
+            sink.counter("oss_extraction_cache_disk_hits_total", "Hits of the disk tier", cache.getDiskHits());
+            sink.counter("oss_extraction_cache_misses_total", "Misses of the extraction cache", cache.getMisses());
+            sink.gauge("oss_extraction_cache_memory_bytes", "Size of the memory tier", cache.getMemoryBytes());
+            sink.gauge("oss_extraction_cache_disk_bytes", "Size of the disk tier", cache.getDiskBytes());
+        });
+        graphqlSearchFetchers.ifPresent(true, search -> {
+            sink.counter("oss_search_cache_hits_total", "Hits of the search cache", search.getCacheHits());
+            sink.counter("oss_search_cache_misses_total", "Misses of the search cache", search.getCacheMisses());
+        });
+        graphqlService.ifPresent(true, service -> service.getFieldHistograms().forEach(
+            (field, histogram) -> sink.summary("oss_graphql_field_seconds",
+                "Duration of a sample (1 out of " + GraphQLFieldTimingInstrumentation.SAMPLE_RATE
+                    + ") of the GraphQL data fetchers", histogram, "field", field)));
+    }
+
+    /**
+     * @return the status (pool size, active threads, queue depth) of the executors already created
+     */
+    public List<ManagedExecutor.Status> getExecutorStatus() {
+        final List<ManagedExecutor.Status> status = new ArrayList<>();
+        executors.forEach(executor -> executor.ifPresent(true, e -> status.add(e.getStatus())));
+        return status;
     }
 
     public ConfigService getConfigService() {
@@ -164,7 +260,7 @@ public class Components implements Closeable {
 
     private IndexManager getIndexManager() {
         return indexManager.get(() -> new IndexManager(createDataSubDirectoryIfNotExists(IndexServiceInterface.PATH),
-            getExecutorService()));
+            getIndexExecutorService()));
     }
 
     public IndexServiceInterface getIndexService() {
@@ -177,13 +273,48 @@ public class Components implements Closeable {
     }
 
     private WebCrawlerManager getWebCrawlerManager() {
+        // The components used by the crawl sessions are created first, they will be closed after the crawler manager
+        final ExtractionPool extractionPool = getExtractionPool();
+        final FingerprintStore fingerprintStore = getFingerprintStore();
         final WebCrawlerManager crawlerManager = webCrawlerManager.get(
-            () -> new WebCrawlerManager(createDataSubDirectoryIfNotExists(CRAWLER_DIRECTORY), "localhost", getExecutorService()));
+            () -> new WebCrawlerManager(createDataSubDirectoryIfNotExists(CRAWLER_DIRECTORY), "localhost",
+                getCrawlerExecutorService()));
         crawlerManager.registerAttribute(EXTRACTOR_SERVICE_ATTRIBUTE, getExtractorService());
+        crawlerManager.registerAttribute(EXTRACTION_POOL_ATTRIBUTE, extractionPool);
+        crawlerManager.registerAttribute(FINGERPRINT_STORE_ATTRIBUTE, fingerprintStore);
+        crawlerManager.registerAttribute(EXTRACTION_CACHE_ATTRIBUTE, getExtractionCache());
+        crawlerManager.registerAttribute(SPOOL_DIRECTORY_ATTRIBUTE, dataDirectory.resolve(SPOOL_DIRECTORY));
+        crawlerManager.registerAttribute(METRICS_ATTRIBUTE, serverMetrics);
         crawlerManager.registerAttribute(INDEX_SERVICE_ATTRIBUTE, getIndexService());
+        crawlerManager.registerAttribute(INDEX_EXECUTOR_ATTRIBUTE, getIndexExecutorService());
+        crawlerManager.registerAttribute(INDEX_WRITE_LISTENER_ATTRIBUTE, (IndexWriteListener) this::indexWritten);
         return crawlerManager;
     }
 
+    /**
+     * The index has been written by this server: the search cache reads its version again
+     */
+    protected void indexWritten(final String indexName) {
+        graphqlSearchFetchers.ifPresent(true, fetchers -> fetchers.invalidate(indexName));
+    }
+
+    private FingerprintStore getFingerprintStore() {
+        return fingerprintStore.get(() -> new FingerprintStore(
+            createDataSubDirectoryIfNotExists(CRAWLER_DIRECTORY).resolve(FINGERPRINT_STORE_FILE)));
+    }
+
+    /**
+     * The segments left in the spool directory are replayed at startup, and until the index service is available
+     */
+    private CrawlerSpoolReplayer getCrawlerSpoolReplayer() {
+        final IndexServiceInterface indexService = getIndexService();
+        return crawlerSpoolReplayer.get(() -> new CrawlerSpoolReplayer(dataDirectory.resolve(SPOOL_DIRECTORY),
+            (indexName, documents) -> {
+                indexService.postJson(indexName, false, documents);
+                indexWritten(indexName);
+            }, SPOOL_REPLAY_PERIOD_MS).start());
+    }
+
     protected WebCrawlerServiceInterface getWebCrawlerService() {
         return webCrawlerService.get(() -> {
             if (getConfigService().getCrawlerServiceUri() != null)
@@ -193,47 +324,98 @@ public class Components implements Closeable {
         });
     }
 
-    private ExtractorManager getExtractorManager() {
-        return extractorManager.get(() -> {
-            final ExtractorManager extractorManager = new ExtractorManager();
+    private ParserRegistry getParserRegistry() {
+        return parserRegistry.get(() -> {
             Path parsersPath = getConfigService().getParsersDirectoryPath();
             if (parsersPath == null)
                 parsersPath = createDataSubDirectoryIfNotExists(PARSERS_DIRECTORY);
-            extractorManager.registerShadedJars(parsersPath);
-            return extractorManager;
+            return new ParserRegistry(parsersPath, createDataSubDirectoryIfNotExists(PARSER_REGISTRY_DIRECTORY));
         });
     }
 
     protected ExtractorServiceInterface getExtractorService() {
-        return extractorService.get(() -> getExtractorManager().getService());
+        return extractorService.get(() -> getParserRegistry().getService());
+    }
+
+    protected ExtractionPool getExtractionPool() {
+        return extractionPool.get(() -> new ExtractionPool(getExtractorService(), getExtractionExecutorService(),
+            getConfigService().getExtractionTimeoutMs(),
+            getConfigService().getExtractionMaxInflightBytes(),
+            getConfigService().getExtractionConcurrency(),
+            serverMetrics.extractionTime));
+    }
+
+    protected ExtractionCache getExtractionCache() {
+        return extractionCache.get(() -> new ExtractionCache(
+            getConfigService().getExtractionCacheBytes(),
+            dataDirectory.resolve(EXTRACTION_CACHE_DIRECTORY),
+            getConfigService().getExtractionCacheDiskBytes()));
+    }
+
+    GraphQLListFetchers getGraphQLListFetchers() {
+        return graphqlListFetchers.get(
+            () -> new GraphQLListFetchers(getIndexService(), getWebCrawlerService(), getGraphQLExecutorService()));
+    }
+
+    GraphQLSearchFetchers getGraphQLSearchFetchers() {
+        return graphqlSearchFetchers.get(
+            () -> new GraphQLSearchFetchers(getIndexService(), getConfigService().getGraphQLSearchCacheSize(),
+                getConfigService().getGraphQLSearchVersionTtlMs()));
     }
 
     public GraphQLService getGraphQLService() {
         return graphqlService.get(() -> {
-            return new GraphQLService();
+            return new GraphQLService(getConfigService(), getGraphQLExecutorService(), serverMetrics,
+                getGraphQLListFetchers(), getGraphQLSearchFetchers(), new GraphQLStatsFetchers(this::collectMetrics));
         });
     }
 
+    /**
+     * Create the components concurrently, out of the caller thread.
+     * The components needed by the other ones are created first, by the task which needs them first.
+     *
+     * @return the started warm-up
+     */
+    protected WarmUp warmUp() {
+        return new WarmUp()
+            .task("config", this::getConfigService)
+            .task("indexService", this::getIndexService)
+            .task("extractorService", this::getExtractorService)
+            .task("extractionPool", this::getExtractionPool)
+            .task("extractionCache", this::getExtractionCache)
+            .task("fingerprintStore", this::getFingerprintStore)
+            .task("webCrawlerService", this::getWebCrawlerService)
+            .task("crawlerSpoolReplayer", this::getCrawlerSpoolReplayer)
+            .task("graphqlService", this::getGraphQLService)
+            .task("sessionPersistenceManager", this::getSessionPersistenceManager)
+            .start();
+    }
+
     public SessionPersistenceManager getSessionPersistenceManager() {
-        return sessionPersistenceManager.get(
-            () -> new InFileSessionPersistenceManager(createDataSubDirectoryIfNotExists(WEB_SESSIONS_DIRECTORY)));
+        return sessionPersistenceManager.get(() -> {
+            final CompactSessionPersistenceManager manager =
+                new CompactSessionPersistenceManager(createDataSubDirectoryIfNotExists(WEB_SESSIONS_DIRECTORY));
+            // The log is read by the warm-up rather than by the first deployment
+            manager.load();
+            return manager;
+        });
     }
 
     @Override
     public synchronized void close() {
 
-        // First we shutdown the executorService
-        executorService.ifPresent(true, ExecutorService::shutdown);
+        // First we shutdown the executors
+        executors.forEach(executor -> executor.ifPresent(true, ManagedExecutor::shutdown));
 
         // Then we close components in reverse order
         providersWithAutoCloseableValue.forEach(AtomicProvider::close);
         providersWithAutoCloseableValue.clear();
 
         // Let's wait 5 minutes for all threads to be done
-        executorService.ifPresent(true, executor -> executor.awaitTermination(5, TimeUnit.MINUTES));
+        executors.forEach(executor -> executor.ifPresent(true, e -> e.awaitTermination(5, TimeUnit.MINUTES)));
 
         // Second chance shutdown
-        executorService.ifPresent(true, ExecutorService::shutdownNow);
+        executors.forEach(executor -> executor.ifPresent(true, ManagedExecutor::shutdownNow));
 
         // Closing/resetting every providers
         providers.forEach(AtomicProvider::close);
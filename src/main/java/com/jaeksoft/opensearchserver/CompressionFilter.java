@@ -0,0 +1,323 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Compress the responses with gzip or deflate, as accepted by the client.
+ * <p>
+ * The first bytes of the body are buffered: a response smaller than the "minBytes" init parameter,
+ * or whose media type is not listed by the "mediaTypes" init parameter, is sent as is.
+ * An asynchronous response is finished when its AsyncContext completes.
+ * The non-blocking writes are not compressed.
+ */
+public class CompressionFilter extends HttpFilter {
+
+    public final static String MIN_BYTES_PARAM = "minBytes";
+    public final static String MEDIA_TYPES_PARAM = "mediaTypes";
+
+    private int minBytes;
+    private Set<String> mediaTypes;
+
+    @Override
+    public void init() {
+        final String minBytesParam = getInitParameter(MIN_BYTES_PARAM);
+        minBytes = minBytesParam == null ? 1024 : Integer.parseInt(minBytesParam);
+        mediaTypes = new HashSet<>();
+        final String mediaTypesParam = getInitParameter(MEDIA_TYPES_PARAM);
+        if (mediaTypesParam != null)
+            for (final String mediaType : mediaTypesParam.split(","))
+                if (!mediaType.isBlank())
+                    mediaTypes.add(mediaType.trim().toLowerCase(Locale.ROOT));
+    }
+
+    @Override
+    protected void doFilter(final HttpServletRequest req, final HttpServletResponse res, final FilterChain chain)
+        throws IOException, ServletException {
+        final String acceptEncoding = req.getHeader("Accept-Encoding");
+        final String encoding = StaticAssetServlet.accepts(acceptEncoding, "gzip") ? "gzip" :
+            StaticAssetServlet.accepts(acceptEncoding, "deflate") ? "deflate" : null;
+        if (encoding == null || "HEAD".equals(req.getMethod())) {
+            chain.doFilter(req, res);
+            return;
+        }
+        final CompressingResponse response = new CompressingResponse(res, encoding);
+        chain.doFilter(req, response);
+        if (req.isAsyncStarted())
+            req.getAsyncContext().addListener(new AsyncListener() {
+                @Override
+                public void onComplete(final AsyncEvent event) throws IOException {
+                    response.finish();
+                }
+
+                @Override
+                public void onTimeout(final AsyncEvent event) {
+                }
+
+                @Override
+                public void onError(final AsyncEvent event) {
+                }
+
+                @Override
+                public void onStartAsync(final AsyncEvent event) {
+                }
+            });
+        else
+            response.finish();
+    }
+
+    private boolean isCompressible(final String contentType) {
+        if (contentType == null)
+            return false;
+        final int i = contentType.indexOf(';');
+        return mediaTypes.contains(
+            (i == -1 ? contentType : contentType.substring(0, i)).trim().toLowerCase(Locale.ROOT));
+    }
+
+    private class CompressingResponse extends HttpServletResponseWrapper {
+
+        private final String encoding;
+        private CompressingStream stream;
+        private PrintWriter writer;
+        private long contentLength = -1;
+        private boolean finished;
+
+        private CompressingResponse(final HttpServletResponse response, final String encoding) {
+            super(response);
+            this.encoding = encoding;
+        }
+
+        @Override
+        public void setContentLength(final int length) {
+            contentLength = length;
+        }
+
+        @Override
+        public void setContentLengthLong(final long length) {
+            contentLength = length;
+        }
+
+        /**
+         * The length of the uncompressed body is kept, it is only sent if the body is not compressed
+         */
+        private boolean isContentLength(final String name, final String value) {
+            if (!"Content-Length".equalsIgnoreCase(name))
+                return false;
+            contentLength = value == null ? -1 : Long.parseLong(value.trim());
+            return true;
+        }
+
+        @Override
+        public void setHeader(final String name, final String value) {
+            if (!isContentLength(name, value))
+                super.setHeader(name, value);
+        }
+
+        @Override
+        public void addHeader(final String name, final String value) {
+            if (!isContentLength(name, value))
+                super.addHeader(name, value);
+        }
+
+        @Override
+        public void setIntHeader(final String name, final int value) {
+            if (!isContentLength(name, Integer.toString(value)))
+                super.setIntHeader(name, value);
+        }
+
+        @Override
+        public void addIntHeader(final String name, final int value) {
+            if (!isContentLength(name, Integer.toString(value)))
+                super.addIntHeader(name, value);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null)
+                throw new IllegalStateException("getWriter() has already been called");
+            if (stream == null)
+                stream = new CompressingStream(this);
+            return stream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (stream != null)
+                    throw new IllegalStateException("getOutputStream() has already been called");
+                stream = new CompressingStream(this);
+                writer = new PrintWriter(new OutputStreamWriter(stream, getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null)
+                writer.flush();
+            if (stream != null)
+                stream.flush();
+            super.flushBuffer();
+        }
+
+        @Override
+        public void resetBuffer() {
+            if (stream != null)
+                stream.resetBuffer();
+            super.resetBuffer();
+        }
+
+        /**
+         * Called once the body is complete, either by the filter or by the AsyncContext. Only the first call counts.
+         */
+        private synchronized void finish() throws IOException {
+            if (finished)
+                return;
+            finished = true;
+            if (writer != null)
+                writer.close();
+            else if (stream != null)
+                stream.close();
+            else if (contentLength >= 0)
+                super.setContentLengthLong(contentLength);
+        }
+    }
+
+    private class CompressingStream extends ServletOutputStream {
+
+        private final CompressingResponse response;
+        private final ByteArrayOutputStream buffer;
+        private ServletOutputStream servletOutput;
+        private OutputStream output;
+        private boolean closed;
+
+        private CompressingStream(final CompressingResponse response) {
+            this.response = response;
+            this.buffer = new ByteArrayOutputStream(Math.max(32, minBytes));
+        }
+
+        /**
+         * Choose between compressed and plain output, then write the buffered bytes
+         *
+         * @param compress true if the body is large enough to be compressed
+         * @param complete true if the buffer holds the whole body
+         */
+        private void decide(final boolean compress, final boolean complete) throws IOException {
+            final HttpServletResponse wrapped = (HttpServletResponse) response.getResponse();
+            servletOutput = wrapped.getOutputStream();
+            if (compress && wrapped.getHeader("Content-Encoding") == null &&
+                isCompressible(response.getContentType())) {
+                wrapped.setHeader("Content-Encoding", response.encoding);
+                wrapped.addHeader("Vary", "Accept-Encoding");
+                output = "gzip".equals(response.encoding) ?
+                    new GZIPOutputStream(servletOutput, 8192, true) :
+                    new DeflaterOutputStream(servletOutput, true);
+            } else {
+                if (response.contentLength >= 0)
+                    wrapped.setContentLengthLong(response.contentLength);
+                else if (complete)
+                    wrapped.setContentLengthLong(buffer.size());
+                output = servletOutput;
+            }
+            buffer.writeTo(output);
+            buffer.reset();
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (output != null) {
+                output.write(b);
+                return;
+            }
+            buffer.write(b);
+            if (buffer.size() >= minBytes)
+                decide(true, false);
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+            if (output != null) {
+                output.write(bytes, offset, length);
+                return;
+            }
+            buffer.write(bytes, offset, length);
+            if (buffer.size() >= minBytes)
+                decide(true, false);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (output != null)
+                output.flush();
+        }
+
+        private void resetBuffer() {
+            if (output == null)
+                buffer.reset();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            // The body is smaller than the threshold
+            if (output == null)
+                decide(false, true);
+            output.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return servletOutput == null || servletOutput.isReady();
+        }
+
+        /**
+         * The listener is registered before the first write: the body is then sent as is
+         */
+        @Override
+        public void setWriteListener(final WriteListener writeListener) {
+            if (output == null) {
+                try {
+                    decide(false, false);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot switch to non-blocking writes", e);
+                }
+            }
+            servletOutput.setWriteListener(writeListener);
+        }
+    }
+}
@@ -22,6 +22,9 @@ import java.io.IOException;
 import java.net.URI;
 import java.nio.file.Path;
 import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
 
@@ -47,6 +50,90 @@ public class ConfigService extends FileConfigService<ConfigService.Config> {
         return getCurrent().parsersDirectoryPath;
     }
 
+    public long getExtractionTimeoutMs() {
+        return getCurrent().extractionTimeoutMs;
+    }
+
+    public long getExtractionMaxInflightBytes() {
+        return getCurrent().extractionMaxInflightBytes;
+    }
+
+    public Map<String, Integer> getExtractionConcurrency() {
+        return getCurrent().extractionConcurrency;
+    }
+
+    public long getExtractionCacheBytes() {
+        return getCurrent().extractionCacheBytes;
+    }
+
+    public long getExtractionCacheDiskBytes() {
+        return getCurrent().extractionCacheDiskBytes;
+    }
+
+    public int getGraphQLDocumentCacheSize() {
+        return getCurrent().graphqlDocumentCacheSize;
+    }
+
+    public int getGraphQLPersistedQueryCacheSize() {
+        return getCurrent().graphqlPersistedQueryCacheSize;
+    }
+
+    public long getGraphQLTimeoutMs() {
+        return getCurrent().graphqlTimeoutMs;
+    }
+
+    public int getGraphQLMaxBatchSize() {
+        return getCurrent().graphqlMaxBatchSize;
+    }
+
+    public int getGraphQLMaxDepth() {
+        return getCurrent().graphqlMaxDepth;
+    }
+
+    public int getGraphQLMaxComplexity() {
+        return getCurrent().graphqlMaxComplexity;
+    }
+
+    public int getGraphQLSearchCacheSize() {
+        return getCurrent().graphqlSearchCacheSize;
+    }
+
+    public long getGraphQLSearchVersionTtlMs() {
+        return getCurrent().graphqlSearchVersionTtlMs;
+    }
+
+    public boolean isCompressionEnabled() {
+        return getCurrent().compressionEnabled;
+    }
+
+    public int getCompressionMinBytes() {
+        return getCurrent().compressionMinBytes;
+    }
+
+    public String getCompressionMediaTypes() {
+        return getCurrent().compressionMediaTypes;
+    }
+
+    public String getPublicPaths() {
+        return getCurrent().publicPaths;
+    }
+
+    public ExecutorConfig getIndexExecutorConfig() {
+        return getCurrent().indexExecutor;
+    }
+
+    public ExecutorConfig getCrawlerExecutorConfig() {
+        return getCurrent().crawlerExecutor;
+    }
+
+    public ExecutorConfig getExtractionExecutorConfig() {
+        return getCurrent().extractionExecutor;
+    }
+
+    public ExecutorConfig getGraphQLExecutorConfig() {
+        return getCurrent().graphqlExecutor;
+    }
+
     public static class Config extends PropertiesConfig {
 
         private static final String SERVER_NAME = "serverName";
@@ -54,12 +141,50 @@ public class ConfigService extends FileConfigService<ConfigService.Config> {
         private static final String INDEX_SERVICE_URI = "indexServiceUri";
         private static final String CRAWLER_SERVICE_URI = "crawlerServiceUri";
         private static final String PARSERS_DIRECTORY_PATH = "parsersDirectoryPath";
+        private static final String EXTRACTION_TIMEOUT_MS = "extractionTimeoutMs";
+        private static final String EXTRACTION_MAX_INFLIGHT_BYTES = "extractionMaxInflightBytes";
+        private static final String EXTRACTION_CONCURRENCY = "extractionConcurrency";
+        private static final String EXTRACTION_CACHE_BYTES = "extractionCacheBytes";
+        private static final String EXTRACTION_CACHE_DISK_BYTES = "extractionCacheDiskBytes";
+        private static final String GRAPHQL_DOCUMENT_CACHE_SIZE = "graphqlDocumentCacheSize";
+        private static final String GRAPHQL_PERSISTED_QUERY_CACHE_SIZE = "graphqlPersistedQueryCacheSize";
+        private static final String GRAPHQL_TIMEOUT_MS = "graphqlTimeoutMs";
+        private static final String GRAPHQL_MAX_BATCH_SIZE = "graphqlMaxBatchSize";
+        private static final String GRAPHQL_MAX_DEPTH = "graphqlMaxDepth";
+        private static final String GRAPHQL_MAX_COMPLEXITY = "graphqlMaxComplexity";
+        private static final String GRAPHQL_SEARCH_CACHE_SIZE = "graphqlSearchCacheSize";
+        private static final String GRAPHQL_SEARCH_VERSION_TTL_MS = "graphqlSearchVersionTtlMs";
+        private static final String COMPRESSION_ENABLED = "compressionEnabled";
+        private static final String COMPRESSION_MIN_BYTES = "compressionMinBytes";
+        private static final String COMPRESSION_MEDIA_TYPES = "compressionMediaTypes";
+        private static final String PUBLIC_PATHS = "publicPaths";
 
         private final String servername;
         private final boolean isProduction;
         private final URI indexServiceUri;
         private final URI crawlerServiceUri;
         private final Path parsersDirectoryPath;
+        private final long extractionTimeoutMs;
+        private final long extractionMaxInflightBytes;
+        private final Map<String, Integer> extractionConcurrency;
+        private final long extractionCacheBytes;
+        private final long extractionCacheDiskBytes;
+        private final int graphqlDocumentCacheSize;
+        private final int graphqlPersistedQueryCacheSize;
+        private final long graphqlTimeoutMs;
+        private final int graphqlMaxBatchSize;
+        private final int graphqlMaxDepth;
+        private final int graphqlMaxComplexity;
+        private final int graphqlSearchCacheSize;
+        private final long graphqlSearchVersionTtlMs;
+        private final boolean compressionEnabled;
+        private final int compressionMinBytes;
+        private final String compressionMediaTypes;
+        private final String publicPaths;
+        private final ExecutorConfig indexExecutor;
+        private final ExecutorConfig crawlerExecutor;
+        private final ExecutorConfig extractionExecutor;
+        private final ExecutorConfig graphqlExecutor;
 
         public Config(Properties properties, Instant creationTime) {
             super(properties, creationTime);
@@ -68,6 +193,65 @@ public class ConfigService extends FileConfigService<ConfigService.Config> {
             indexServiceUri = getUriProperty(INDEX_SERVICE_URI, () -> null);
             crawlerServiceUri = getUriProperty(CRAWLER_SERVICE_URI, () -> null);
             parsersDirectoryPath = getPathProperty(PARSERS_DIRECTORY_PATH, () -> null);
+            extractionTimeoutMs = Long.parseLong(getStringProperty(EXTRACTION_TIMEOUT_MS, () -> "300000"));
+            extractionMaxInflightBytes = Long.parseLong(getStringProperty(EXTRACTION_MAX_INFLIGHT_BYTES,
+                () -> Long.toString(256L * 1024 * 1024)));
+            extractionConcurrency = parseIntegerMap(getStringProperty(EXTRACTION_CONCURRENCY, () -> null));
+            extractionCacheBytes = Long.parseLong(getStringProperty(EXTRACTION_CACHE_BYTES,
+                () -> Long.toString(64L * 1024 * 1024)));
+            extractionCacheDiskBytes = Long.parseLong(getStringProperty(EXTRACTION_CACHE_DISK_BYTES, () -> "0"));
+            graphqlDocumentCacheSize = Integer.parseInt(getStringProperty(GRAPHQL_DOCUMENT_CACHE_SIZE, () -> "500"));
+            graphqlPersistedQueryCacheSize = Integer.parseInt(
+                getStringProperty(GRAPHQL_PERSISTED_QUERY_CACHE_SIZE, () -> "1000"));
+            graphqlTimeoutMs = Long.parseLong(getStringProperty(GRAPHQL_TIMEOUT_MS, () -> "30000"));
+            graphqlMaxBatchSize = Integer.parseInt(getStringProperty(GRAPHQL_MAX_BATCH_SIZE, () -> "20"));
+            graphqlMaxDepth = Integer.parseInt(getStringProperty(GRAPHQL_MAX_DEPTH, () -> "10"));
+            graphqlMaxComplexity = Integer.parseInt(getStringProperty(GRAPHQL_MAX_COMPLEXITY, () -> "1000"));
+            graphqlSearchCacheSize = Integer.parseInt(getStringProperty(GRAPHQL_SEARCH_CACHE_SIZE, () -> "1000"));
+            graphqlSearchVersionTtlMs = Long.parseLong(getStringProperty(GRAPHQL_SEARCH_VERSION_TTL_MS, () -> "1000"));
+            compressionEnabled = getBooleanProperty(COMPRESSION_ENABLED, () -> Boolean.TRUE);
+            compressionMinBytes = Integer.parseInt(getStringProperty(COMPRESSION_MIN_BYTES, () -> "1024"));
+            compressionMediaTypes = getStringProperty(COMPRESSION_MEDIA_TYPES,
+                () -> "application/json,application/x-ndjson,text/plain,text/html");
+            // The metrics are scraped and the health is probed without a token
+            publicPaths = getStringProperty(PUBLIC_PATHS, () -> "/static/*,/favicon.ico,/metrics,/health,/health/*");
+            final int processors = Runtime.getRuntime().availableProcessors();
+            // IndexManager does not expect a rejection: the submitting thread runs the task
+            indexExecutor = getExecutorConfig("index", processors * 2, 1000, true);
+            // A crawl session holds its thread until it ends: no queue, a session beyond the limit is rejected (503)
+            crawlerExecutor = getExecutorConfig("crawler", 16, 0, false);
+            extractionExecutor = getExecutorConfig("extraction", processors, Integer.MAX_VALUE, false);
+            graphqlExecutor = getExecutorConfig("graphql", processors * 2, 1000, false);
+        }
+
+        /**
+         * Read the properties of an executor: [name]ExecutorThreads, [name]ExecutorQueue, [name]ExecutorVirtual
+         */
+        private ExecutorConfig getExecutorConfig(final String name,
+                                                 final int defaultThreads,
+                                                 final int defaultQueue,
+                                                 final boolean callerRunsWhenFull) {
+            return new ExecutorConfig(
+                Integer.parseInt(getStringProperty(name + "ExecutorThreads", () -> Integer.toString(defaultThreads))),
+                Integer.parseInt(getStringProperty(name + "ExecutorQueue", () -> Integer.toString(defaultQueue))),
+                getBooleanProperty(name + "ExecutorVirtual", () -> Boolean.FALSE),
+                callerRunsWhenFull);
+        }
+
+        /**
+         * Parse a list of key/value pairs: "application/pdf:2,application/msword:2"
+         */
+        private static Map<String, Integer> parseIntegerMap(final String value) {
+            if (value == null || value.isBlank())
+                return Collections.emptyMap();
+            final Map<String, Integer> map = new LinkedHashMap<>();
+            for (final String pair : value.split(",")) {
+                final int i = pair.lastIndexOf(':');
+                if (i == -1)
+                    throw new IllegalArgumentException("The value should be key:value pairs: " + value);
+                map.put(pair.substring(0, i).trim(), Integer.parseInt(pair.substring(i + 1).trim()));
+            }
+            return Collections.unmodifiableMap(map);
         }
 
         @Override
@@ -81,13 +265,72 @@ public class ConfigService extends FileConfigService<ConfigService.Config> {
                 && isProduction == o.isProduction
                 && Objects.equals(indexServiceUri, o.indexServiceUri)
                 && Objects.equals(crawlerServiceUri, o.crawlerServiceUri)
-                && Objects.equals(parsersDirectoryPath, o.parsersDirectoryPath);
+                && Objects.equals(parsersDirectoryPath, o.parsersDirectoryPath)
+                && extractionTimeoutMs == o.extractionTimeoutMs
+                && extractionMaxInflightBytes == o.extractionMaxInflightBytes
+                && Objects.equals(extractionConcurrency, o.extractionConcurrency)
+                && extractionCacheBytes == o.extractionCacheBytes
+                && extractionCacheDiskBytes == o.extractionCacheDiskBytes
+                && graphqlDocumentCacheSize == o.graphqlDocumentCacheSize
+                && graphqlPersistedQueryCacheSize == o.graphqlPersistedQueryCacheSize
+                && graphqlTimeoutMs == o.graphqlTimeoutMs
+                && graphqlMaxBatchSize == o.graphqlMaxBatchSize
+                && graphqlMaxDepth == o.graphqlMaxDepth
+                && graphqlMaxComplexity == o.graphqlMaxComplexity
+                && graphqlSearchCacheSize == o.graphqlSearchCacheSize
+                && graphqlSearchVersionTtlMs == o.graphqlSearchVersionTtlMs
+                && compressionEnabled == o.compressionEnabled
+                && compressionMinBytes == o.compressionMinBytes
+                && Objects.equals(compressionMediaTypes, o.compressionMediaTypes)
+                && Objects.equals(publicPaths, o.publicPaths)
+                && Objects.equals(indexExecutor, o.indexExecutor)
+                && Objects.equals(crawlerExecutor, o.crawlerExecutor)
+                && Objects.equals(extractionExecutor, o.extractionExecutor)
+                && Objects.equals(graphqlExecutor, o.graphqlExecutor);
         }
 
         @Override
         public int hashCode() {
             return Objects.hash(servername, isProduction,
-                indexServiceUri, crawlerServiceUri, parsersDirectoryPath);
+                indexServiceUri, crawlerServiceUri, parsersDirectoryPath,
+                extractionTimeoutMs, extractionMaxInflightBytes, extractionConcurrency,
+                extractionCacheBytes, extractionCacheDiskBytes,
+                graphqlDocumentCacheSize, graphqlPersistedQueryCacheSize, graphqlTimeoutMs,
+                graphqlMaxBatchSize, graphqlMaxDepth, graphqlMaxComplexity,
+                graphqlSearchCacheSize, graphqlSearchVersionTtlMs,
+                compressionEnabled, compressionMinBytes, compressionMediaTypes, publicPaths,
+                indexExecutor, crawlerExecutor, extractionExecutor, graphqlExecutor);
+        }
+    }
+
+    public static class ExecutorConfig {
+
+        final int threads;
+        final int queue;
+        final boolean virtual;
+        final boolean callerRunsWhenFull;
+
+        ExecutorConfig(final int threads, final int queue, final boolean virtual, final boolean callerRunsWhenFull) {
+            this.threads = Math.max(1, threads);
+            this.queue = Math.max(0, queue);
+            this.virtual = virtual;
+            this.callerRunsWhenFull = callerRunsWhenFull;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof ExecutorConfig))
+                return false;
+            if (other == this)
+                return true;
+            final ExecutorConfig o = (ExecutorConfig) other;
+            return threads == o.threads && queue == o.queue && virtual == o.virtual
+                && callerRunsWhenFull == o.callerRunsWhenFull;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(threads, queue, virtual, callerRunsWhenFull);
         }
     }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.qwazr.utils.ObjectMappers;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.ws.rs.InternalServerErrorException;
+
+/**
+ * The results collected since the last flush.
+ * <p>
+ * The results are serialized as they are collected through one incremental generator into a {@link TokenBuffer}:
+ * no tree is kept per result, and the token buffer is much more compact than the tree of the same documents.
+ * The JSON tree expected by {@link com.qwazr.search.index.IndexServiceInterface#postJson} is only built
+ * by the indexing stage, once per flush, and can be released as soon as it is posted.
+ * The caller provides the synchronization.
+ */
+@NotThreadSafe
+final class CrawlerBuffer {
+
+    private final CrawlerBufferPolicy policy;
+
+    private TokenBuffer tokens;
+    private List<Runnable> callbacks;
+    private int count;
+    private long bytes;
+    private long startNanoTime;
+
+    CrawlerBuffer(final CrawlerBufferPolicy policy) {
+        this.policy = policy;
+        reset();
+    }
+
+    private void reset() {
+        tokens = new TokenBuffer(ObjectMappers.JSON, false);
+        try {
+            tokens.writeStartArray();
+        } catch (IOException e) {
+            throw new InternalServerErrorException("Cannot start the crawl buffer", e);
+        }
+        callbacks = new ArrayList<>();
+        count = 0;
+        bytes = 0;
+    }
+
+    /**
+     * @param crawlerResult the result to buffer
+     * @param afterPost     an optional callback called once the result has been posted to the index
+     * @return true if the buffer is full and should be flushed
+     */
+    boolean add(final CrawlerResult crawlerResult, final Runnable afterPost) {
+        if (count == 0)
+            startNanoTime = System.nanoTime();
+        try {
+            ObjectMappers.JSON.writeValue(tokens, crawlerResult);
+        } catch (IOException e) {
+            throw new InternalServerErrorException("Cannot buffer the result: " + crawlerResult.url, e);
+        }
+        count++;
+        bytes += crawlerResult.estimateSize();
+        if (afterPost != null)
+            callbacks.add(afterPost);
+        return policy.isFull(count, bytes, startNanoTime);
+    }
+
+    /**
+     * The age limit can be reached while no further result is collected
+     *
+     * @return true if the buffer should be flushed
+     */
+    boolean isFull() {
+        return policy.isFull(count, bytes, startNanoTime);
+    }
+
+    int size() {
+        return count;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Empty the buffer
+     *
+     * @return the buffered results and their callbacks
+     */
+    Batch drain() {
+        try {
+            tokens.writeEndArray();
+        } catch (IOException e) {
+            throw new InternalServerErrorException("Cannot close the crawl buffer", e);
+        }
+        final Batch batch = new Batch(tokens, callbacks);
+        reset();
+        return batch;
+    }
+
+    static final class Batch {
+
+        private final TokenBuffer tokens;
+        final List<Runnable> callbacks;
+
+        private Batch(final TokenBuffer tokens, final List<Runnable> callbacks) {
+            this.tokens = tokens;
+            this.callbacks = callbacks;
+        }
+
+        /**
+         * @return the JSON tree of the buffered results
+         */
+        ArrayNode toDocuments() {
+            try {
+                return ObjectMappers.JSON.readTree(tokens.asParser());
+            } catch (IOException e) {
+                throw new InternalServerErrorException("Cannot read the crawl buffer", e);
+            }
+        }
+    }
+}
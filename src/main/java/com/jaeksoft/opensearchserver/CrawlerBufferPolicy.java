@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import java.util.concurrent.TimeUnit;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Decide when the crawl buffer has to be flushed.
+ * <p>
+ * The buffer is full when one of the limits is reached: the number of results, the estimated size of the payload,
+ * or the age of the oldest buffered result.
+ * In adaptive mode, the number of results is tuned from the observed flush latency:
+ * it grows while the flushes are faster than the target latency and the throughput keeps up,
+ * and it is halved as soon as a flush is slower than the target.
+ * The "buffer" value stays the upper bound.
+ */
+@ThreadSafe
+final class CrawlerBufferPolicy {
+
+    private final int maxCount;
+    private final long maxBytes;
+    private final long maxAgeNanos;
+    private final long targetLatencyNanos;
+
+    private volatile int targetCount;
+    private double lastThroughput;
+
+    /**
+     * @param maxCount             the maximum number of buffered results
+     * @param maxBytes             the maximum estimated payload in bytes, 0 to disable
+     * @param maxAgeSeconds        the maximum age of the oldest result in seconds, 0 to disable
+     * @param targetLatencyMillis  the expected flush latency in milliseconds, 0 to disable the adaptive mode
+     */
+    CrawlerBufferPolicy(final int maxCount,
+                        final long maxBytes,
+                        final int maxAgeSeconds,
+                        final int targetLatencyMillis) {
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+        this.maxAgeNanos = TimeUnit.SECONDS.toNanos(maxAgeSeconds);
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.targetCount = targetLatencyMillis == 0 ? maxCount : Math.max(1, maxCount / 4);
+        this.lastThroughput = 0;
+    }
+
+    /**
+     * @param count          the number of buffered results
+     * @param bytes          the estimated size of the buffered results
+     * @param firstNanoTime  the {@link System#nanoTime()} when the first result has been buffered
+     * @return true if the buffer should be flushed
+     */
+    boolean isFull(final int count, final long bytes, final long firstNanoTime) {
+        if (count == 0)
+            return false;
+        if (count >= targetCount)
+            return true;
+        if (maxBytes > 0 && bytes >= maxBytes)
+            return true;
+        return maxAgeNanos > 0 && System.nanoTime() - firstNanoTime >= maxAgeNanos;
+    }
+
+    /**
+     * Record a flush. In adaptive mode, the target number of results is updated.
+     *
+     * @param count        the number of posted results
+     * @param latencyNanos the duration of the post
+     */
+    synchronized void recordFlush(final int count, final long latencyNanos) {
+        if (targetLatencyNanos == 0 || count == 0)
+            return;
+        final double throughput = (double) count / Math.max(1, latencyNanos);
+        if (latencyNanos > targetLatencyNanos)
+            targetCount = Math.max(1, targetCount / 2);
+        else if (count >= targetCount && throughput >= lastThroughput * 0.9)
+            targetCount = Math.min(maxCount, targetCount + Math.max(1, targetCount / 4));
+        lastThroughput = throughput;
+    }
+
+    /**
+     * @return true if the age of the oldest result is limited
+     */
+    boolean hasMaxAge() {
+        return maxAgeNanos > 0;
+    }
+
+    int getTargetCount() {
+        return targetCount;
+    }
+}
@@ -15,7 +15,7 @@
  */
 package com.jaeksoft.opensearchserver;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.qwazr.crawler.common.Attributes;
 import com.qwazr.crawler.common.CrawlCollector;
 import com.qwazr.crawler.common.CrawlDefinition;
@@ -27,82 +27,333 @@ import com.qwazr.crawler.web.driver.DriverInterface;
 import com.qwazr.extractor.ExtractorServiceInterface;
 import com.qwazr.extractor.ParserResult;
 import com.qwazr.search.index.IndexServiceInterface;
-import com.qwazr.utils.ObjectMappers;
+import com.qwazr.search.index.IndexStatus;
+import com.qwazr.utils.LoggerUtils;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.Path;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.validation.constraints.NotNull;
 import javax.ws.rs.InternalServerErrorException;
 import javax.ws.rs.NotAcceptableException;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 
 public abstract class CrawlerCollector<ITEM extends CrawlItem<?>> implements CrawlCollector<ITEM> {
 
     private final static int DEFAULT_BUFFER_SIZE = 100;
+    private final static int DEFAULT_INDEX_WORKERS = 1;
+    private final static int DEFAULT_INDEX_QUEUE = 2;
+    private final static int DEFAULT_BUFFER_BYTES = 32 * 1024 * 1024;
+    private final static int DEFAULT_BUFFER_AGE = 60;
+    private final static long SPOOL_LOCK_WAIT_MS = 30000;
+    private final static long AGE_CHECK_PERIOD_MS = 1000;
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(CrawlerCollector.class);
 
     protected final ExtractorServiceInterface extractorService;
-    private final IndexServiceInterface indexServiceInterface;
-    private final String indexName;
-    private final int bufferSize;
-    private final List<CrawlerResult> buffer;
+    protected final IndexServiceInterface indexServiceInterface;
+    protected final ExtractionPool extractionPool;
+    protected final String indexName;
+    private final CrawlerBufferPolicy bufferPolicy;
+    private final CrawlerIndexer indexer;
+    private final CrawlerSpool spool;
+    protected final ServerMetrics metrics;
+    private final IndexWriteListener indexWriteListener;
+    private final Phaser pendingResults;
+    private final AtomicReference<RuntimeException> pendingError;
+    private final CrawlerBuffer buffer;
+    private ScheduledFuture<?> ageCheck;
 
     private CrawlerCollector(final Attributes attributes, final CrawlDefinition<?> crawlDefinition) {
         extractorService = attributes.getInstance(Components.EXTRACTOR_SERVICE_ATTRIBUTE, ExtractorServiceInterface.class);
         indexServiceInterface = attributes.getInstance(Components.INDEX_SERVICE_ATTRIBUTE, IndexServiceInterface.class);
+        extractionPool = attributes.getInstance(Components.EXTRACTION_POOL_ATTRIBUTE, ExtractionPool.class);
+        final ServerMetrics serverMetrics = attributes.getInstance(Components.METRICS_ATTRIBUTE, ServerMetrics.class);
+        metrics = serverMetrics == null ? new ServerMetrics() : serverMetrics;
+        indexWriteListener =
+            attributes.getInstance(Components.INDEX_WRITE_LISTENER_ATTRIBUTE, IndexWriteListener.class);
         final Map<String, Object> variables = crawlDefinition.getVariables();
         if (variables == null)
             throw new NotAcceptableException("The variables are missing");
         indexName = Optional.of(variables.get("index")).orElseThrow(
             () -> new NotAcceptableException("The \"index\" variable is missing")).toString();
-        final Object p = variables.get("buffer");
-        if (p == null) {
-            bufferSize = DEFAULT_BUFFER_SIZE;
-        } else {
-            if (!(p instanceof Number))
-                throw new NotAcceptableException("The \"buffer\" value is not a number: " + p);
-            bufferSize = ((Number) p).intValue();
-        }
-        if (bufferSize < 1 || bufferSize > 10000)
-            throw new NotAcceptableException("The \"buffer\" value should be between 1 and 10,0000. Actually: " + bufferSize);
-        buffer = new ArrayList<>();
+        bufferPolicy = new CrawlerBufferPolicy(
+            getIntVariable(variables, "buffer", DEFAULT_BUFFER_SIZE, 1, 10000),
+            getIntVariable(variables, "bufferBytes", DEFAULT_BUFFER_BYTES, 0, Integer.MAX_VALUE),
+            getIntVariable(variables, "bufferAge", DEFAULT_BUFFER_AGE, 0, 86400),
+            getIntVariable(variables, "bufferTargetLatency", 0, 0, 600000));
+        final int indexWorkers = getIntVariable(variables, "indexWorkers", DEFAULT_INDEX_WORKERS, 0, 16);
+        final int indexQueue = getIntVariable(variables, "indexQueue", DEFAULT_INDEX_QUEUE, 0, 100);
+        if (getBooleanVariable(variables, "spool", false)) {
+            final Path spoolDirectory = attributes.getInstance(Components.SPOOL_DIRECTORY_ATTRIBUTE, Path.class);
+            try {
+                spool = CrawlerSpool.open(spoolDirectory, indexName, SPOOL_LOCK_WAIT_MS);
+            } catch (IOException e) {
+                throw new InternalServerErrorException("Cannot open the spool directory: " + spoolDirectory, e);
+            }
+            if (spool == null)
+                throw new NotAcceptableException("The spool of the index is used by another crawl session: "
+                    + indexName);
+        } else
+            spool = null;
+        indexer = indexWorkers == 0 ? null : new CrawlerIndexer(indexName,
+            attributes.getInstance(Components.INDEX_EXECUTOR_ATTRIBUTE, ExecutorService.class), indexWorkers,
+            indexQueue);
+        pendingResults = new Phaser(1);
+        pendingError = new AtomicReference<>();
+        buffer = new CrawlerBuffer(bufferPolicy);
+    }
+
+    private static int getIntVariable(final Map<String, Object> variables,
+                                      final String name,
+                                      final int defaultValue,
+                                      final int min,
+                                      final int max) {
+        final Object p = variables.get(name);
+        if (p == null)
+            return defaultValue;
+        if (!(p instanceof Number))
+            throw new NotAcceptableException("The \"" + name + "\" value is not a number: " + p);
+        final int value = ((Number) p).intValue();
+        if (value < min || value > max)
+            throw new NotAcceptableException(
+                "The \"" + name + "\" value should be between " + min + " and " + max + ". Actually: " + value);
+        return value;
     }
 
+    private static boolean getBooleanVariable(final Map<String, Object> variables,
+                                              final String name,
+                                              final boolean defaultValue) {
+        final Object p = variables.get(name);
+        if (p == null)
+            return defaultValue;
+        if (!(p instanceof Boolean))
+            throw new NotAcceptableException("The \"" + name + "\" value is not a boolean: " + p);
+        return (Boolean) p;
+    }
+
+    /**
+     * Post the buffer to the index. With indexing workers, the buffer is handed to the indexing queue
+     * and the crawler thread only waits when the queue is full.
+     */
     private void flush() {
         if (buffer.isEmpty())
             return;
+        metrics.bufferedDocuments.addAndGet(-buffer.size());
+        final Path segment = spool == null ? null : spool.closeSegment();
+        final CrawlerBuffer.Batch batch = buffer.drain();
+        if (indexer == null)
+            post(batch, segment);
+        else
+            indexer.submit(() -> post(batch, segment));
+    }
+
+    /**
+     * When the buffer is spooled, a failed post does not stop the crawl:
+     * the segment is kept and replayed before the next buffers.
+     */
+    private void post(final CrawlerBuffer.Batch batch, final Path segment) {
+        if (segment == null) {
+            postJson(batch.toDocuments());
+        } else {
+            try {
+                if (!spool.replay(this::postJson)) {
+                    spool.retain(segment);
+                    return;
+                }
+                postJson(batch.toDocuments());
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, e, () -> "Post failed, the buffer is kept in the spool: " + segment);
+                spool.retain(segment);
+                return;
+            }
+            spool.delete(segment);
+        }
+        batch.callbacks.forEach(Runnable::run);
+    }
+
+    /**
+     * postJson is the only bulk entry point of the index service taking the dynamic crawl documents:
+     * the mapped variants expect a map per document, the typed ones an annotated record class.
+     * The tree is built once per flush from the token buffer (see {@link CrawlerBuffer}).
+     */
+    private void postJson(final ArrayNode documents) {
+        final long start = System.nanoTime();
         try {
-            final byte[] bytes = ObjectMappers.SMILE.writeValueAsBytes(buffer);
-            final JsonNode jsonNode = ObjectMappers.SMILE.readTree(bytes);
-            indexServiceInterface.postJson(indexName, false, jsonNode);
-            buffer.clear();
-        } catch (final IOException e) {
-            throw new InternalServerErrorException("Error while converting json: " + e.getMessage(), e);
+            indexServiceInterface.postJson(indexName, false, documents);
+        } catch (RuntimeException e) {
+            metrics.flushErrors.increment();
+            throw e;
         }
+        if (indexWriteListener != null)
+            indexWriteListener.indexWritten(indexName);
+        final long nanos = System.nanoTime() - start;
+        bufferPolicy.recordFlush(documents.size(), nanos);
+        metrics.recordFlush(documents.size(), nanos);
     }
 
-    protected void index(final CrawlerResult crawlerResult) {
-        buffer.add(crawlerResult);
-        if (buffer.size() >= bufferSize)
+    /**
+     * The result is serialized into the buffer as soon as it is collected,
+     * and into the spool segment when the spool is enabled.
+     * The age limit of the buffer is checked when a new result is collected,
+     * and periodically by the extraction pool once a result has been buffered (see {@link #flushIfFull()}).
+     *
+     * @param crawlerResult the result to index
+     * @param afterPost     an optional callback called once the result has been posted to the index
+     */
+    protected synchronized void index(final CrawlerResult crawlerResult, final Runnable afterPost) {
+        if (spool != null)
+            spool.append(crawlerResult);
+        final boolean full = buffer.add(crawlerResult, afterPost);
+        metrics.bufferedDocuments.incrementAndGet();
+        if (full)
             flush();
+        else if (ageCheck == null && extractionPool != null && bufferPolicy.hasMaxAge())
+            ageCheck = extractionPool.scheduleWithFixedDelay(this::flushIfFull, AGE_CHECK_PERIOD_MS);
+    }
+
+    /**
+     * Flush a buffer which reached its age limit while no further result was collected.
+     * An error is reported to the crawler thread like the error of a pending result.
+     */
+    private void flushIfFull() {
+        try {
+            synchronized (this) {
+                if (buffer.isFull())
+                    flush();
+            }
+        } catch (RuntimeException e) {
+            pendingError.compareAndSet(null, e);
+        }
+    }
+
+    /**
+     * Register a result which is produced by another thread.
+     * The returned consumer must be called exactly once, done() waits for it.
+     *
+     * @return the consumer which indexes the result
+     */
+    protected BiConsumer<CrawlerResult, Runnable> pendingResult() {
+        pendingResults.register();
+        return (crawlerResult, afterPost) -> {
+            try {
+                index(crawlerResult, afterPost);
+            } catch (RuntimeException e) {
+                pendingError.compareAndSet(null, e);
+            } finally {
+                pendingResults.arriveAndDeregister();
+            }
+        };
+    }
+
+    /**
+     * @throws RuntimeException the first error thrown while indexing a pending result
+     */
+    protected void checkPendingError() {
+        final RuntimeException e = pendingError.get();
+        if (e != null)
+            throw e;
+    }
+
+    private void cancelAgeCheck() {
+        if (ageCheck != null) {
+            ageCheck.cancel(false);
+            ageCheck = null;
+        }
     }
 
     @Override
     final public void done() {
-        flush();
+        try {
+            pendingResults.arriveAndAwaitAdvance();
+            checkPendingError();
+            synchronized (this) {
+                flush();
+            }
+            if (indexer != null)
+                indexer.await();
+            if (spool != null && !spool.replay(this::postJson))
+                throw new InternalServerErrorException("The index service is not available. "
+                    + spool.getPendingCount() + " spooled buffer(s) will be replayed once it is available again");
+        } finally {
+            synchronized (this) {
+                cancelAgeCheck();
+            }
+            if (spool != null)
+                spool.close();
+        }
     }
 
     public static class WebCollector extends CrawlerCollector<WebCrawlItem> {
 
+        private final FingerprintStore fingerprintStore;
+        private final String fingerprintScope;
+        private final ExtractionCache extractionCache;
+
         private WebCollector(final Attributes attributes, final WebCrawlDefinition crawlDefinition) {
             super(attributes, crawlDefinition);
+            fingerprintScope = getBooleanVariable(crawlDefinition.getVariables(), "incremental", false) ?
+                getFingerprintScope() : null;
+            fingerprintStore = fingerprintScope == null ? null :
+                attributes.getInstance(Components.FINGERPRINT_STORE_ATTRIBUTE, FingerprintStore.class);
+            final ExtractionCache cache =
+                attributes.getInstance(Components.EXTRACTION_CACHE_ATTRIBUTE, ExtractionCache.class);
+            extractionCache = cache != null && cache.isEnabled() ? cache : null;
         }
 
+        /**
+         * The fingerprints are scoped by the UUID of the index:
+         * an index deleted and created again with the same name starts with no fingerprint.
+         *
+         * @return the name and the UUID of the index, or null if the UUID is not known (no incremental crawl)
+         */
+        private String getFingerprintScope() {
+            final IndexStatus status;
+            try {
+                status = indexServiceInterface.getIndex(indexName);
+            } catch (WebApplicationException e) {
+                LOGGER.warning(() -> "Incremental crawl disabled, the index is not available: " + indexName);
+                return null;
+            }
+            if (status == null || status.index_uuid == null) {
+                LOGGER.warning(() -> "Incremental crawl disabled, the UUID of the index is not known: " + indexName);
+                return null;
+            }
+            return indexName + '/' + status.index_uuid;
+        }
+
+        /**
+         * When an extraction pool is available, the content is read by the crawler thread
+         * and extracted by the pool. Otherwise, the content is extracted by the crawler thread.
+         * In incremental mode, a page whose content has already been indexed is skipped,
+         * and the digest of the content is recorded once the page has been posted without parsing error.
+         * The same digest is the key of the extraction cache.
+         */
         public void collect(final WebCrawlItem crawlItem) {
+            checkPendingError();
+            final long start = System.nanoTime();
+            metrics.pagesCollected.increment();
+            try {
+                collectItem(crawlItem);
+            } finally {
+                metrics.collectTime.record(System.nanoTime() - start);
+            }
+        }
+
+        private void collectItem(final WebCrawlItem crawlItem) {
             ParserResult parserResult = null;
             Exception parsingError = null;
+            Runnable afterPost = null;
             try {
                 final DriverInterface.Body body = crawlItem.getBody();
                 if (body != null) {
@@ -110,14 +361,67 @@ public abstract class CrawlerCollector<ITEM extends CrawlItem<?>> implements Cra
                     if (content != null) {
                         try (final InputStream inputStream = content.getInput()) {
                             final MediaType mediaType = MediaType.valueOf(content.getContentType());
-                            parserResult = extractorService.extract(null, inputStream, mediaType);
+                            if (extractionPool == null && fingerprintStore == null && extractionCache == null) {
+                                final long extractionStart = System.nanoTime();
+                                parserResult = extractorService.extract(null, inputStream, mediaType);
+                                metrics.extractionTime.record(System.nanoTime() - extractionStart);
+                            } else {
+                                final byte[] bytes = inputStream.readAllBytes();
+                                final byte[] digest = FingerprintStore.digest(bytes);
+                                if (fingerprintStore != null) {
+                                    final String url = crawlItem.getItem().toString();
+                                    if (fingerprintStore.isUnchanged(fingerprintScope, url, digest)) {
+                                        metrics.pagesUnchanged.increment();
+                                        return;
+                                    }
+                                    afterPost = () -> fingerprintStore.put(fingerprintScope, url, digest);
+                                }
+                                if (extractionCache != null) {
+                                    parserResult = extractionCache.get(digest, mediaType);
+                                    if (parserResult != null)
+                                        metrics.extractionCacheHits.increment();
+                                }
+                                if (parserResult == null) {
+                                    if (extractionPool != null) {
+                                        extractLater(crawlItem, bytes, digest, mediaType, afterPost);
+                                        return;
+                                    }
+                                    final long extractionStart = System.nanoTime();
+                                    parserResult = extractorService.extract(null, new ByteArrayInputStream(bytes),
+                                        mediaType);
+                                    metrics.extractionTime.record(System.nanoTime() - extractionStart);
+                                    if (extractionCache != null)
+                                        extractionCache.put(digest, mediaType, parserResult);
+                                }
+                            }
                         }
                     }
                 }
             } catch (Exception e) {
                 parsingError = e;
+                metrics.parsingErrors.increment();
+            }
+            index(new CrawlerResult(crawlItem, parserResult, parsingError), parsingError == null ? afterPost : null);
+        }
+
+        private void extractLater(final WebCrawlItem crawlItem,
+                                  final byte[] bytes,
+                                  final byte[] digest,
+                                  final MediaType mediaType,
+                                  final Runnable afterPost) {
+            final BiConsumer<CrawlerResult, Runnable> pendingResult = pendingResult();
+            try {
+                extractionPool.extract(bytes, mediaType, (parserResult, parsingError) -> {
+                    if (parsingError != null)
+                        metrics.parsingErrors.increment();
+                    pendingResult.accept(new CrawlerResult(crawlItem, parserResult, parsingError),
+                        parsingError == null ? afterPost : null);
+                    if (parsingError == null && extractionCache != null)
+                        extractionCache.put(digest, mediaType, parserResult);
+                });
+            } catch (RuntimeException e) {
+                pendingResult.accept(new CrawlerResult(crawlItem, null, e), null);
             }
-            index(new CrawlerResult(crawlItem, parserResult, parsingError));
         }
 
     }
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.qwazr.utils.LoggerUtils;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.ws.rs.InternalServerErrorException;
+
+/**
+ * Asynchronous indexing stage of a crawl session.
+ * The flushed buffers are queued and posted by the shared index executor,
+ * the crawler thread is only blocked when the queue of the session is full.
+ * <p>
+ * The semaphore is the limit of the session: the buffers being posted plus the queued ones.
+ * At most "workers" buffers of the session are handed to the executor at the same time,
+ * the other sessions and the index service keep their share of the executor.
+ * Once a post has failed, the queued buffers are not posted: they are logged and dropped,
+ * and the error is thrown to the crawler thread (use the spool to keep them).
+ */
+@ThreadSafe
+final class CrawlerIndexer {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(CrawlerIndexer.class);
+
+    private final String name;
+    private final Executor executor;
+    private final int workers;
+    private final Semaphore slots;
+    private final Phaser pending;
+    private final AtomicReference<RuntimeException> error;
+
+    private final Queue<Runnable> queue;
+    private int running;
+
+    /**
+     * @param name      the name of the indexed index
+     * @param executor  the shared index executor
+     * @param workers   the number of buffers of the session posted concurrently
+     * @param queueSize the number of buffers which can wait for a worker
+     */
+    CrawlerIndexer(final String name, final Executor executor, final int workers, final int queueSize) {
+        this.name = name;
+        this.executor = executor;
+        this.workers = workers;
+        slots = new Semaphore(workers + queueSize);
+        pending = new Phaser(1);
+        error = new AtomicReference<>();
+        queue = new ArrayDeque<>();
+        running = 0;
+    }
+
+    private void checkError() {
+        final RuntimeException e = error.get();
+        if (e != null)
+            throw e;
+    }
+
+    /**
+     * Queue an indexing task. Blocks while the queue is full.
+     *
+     * @param task the indexing task
+     * @throws RuntimeException the first error thrown by a previous task
+     */
+    void submit(final Runnable task) {
+        checkError();
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalServerErrorException("Interrupted while waiting for the indexing queue", e);
+        }
+        pending.register();
+        synchronized (this) {
+            queue.add(task);
+        }
+        dispatch();
+    }
+
+    /**
+     * Hand the next queued task to the executor if the session has a free worker
+     */
+    private void dispatch() {
+        final Runnable task;
+        synchronized (this) {
+            if (running >= workers)
+                return;
+            task = queue.poll();
+            if (task == null)
+                return;
+            running++;
+        }
+        try {
+            executor.execute(() -> run(task));
+        } catch (RejectedExecutionException e) {
+            error.compareAndSet(null, e);
+            run(task);
+        }
+    }
+
+    private void run(final Runnable task) {
+        try {
+            final RuntimeException previousError = error.get();
+            if (previousError == null)
+                task.run();
+            else
+                LOGGER.warning(() -> "A buffer of " + name + " is not posted, a previous post failed: "
+                    + previousError.getMessage());
+        } catch (RuntimeException e) {
+            error.compareAndSet(null, e);
+        } finally {
+            done();
+        }
+    }
+
+    private void done() {
+        synchronized (this) {
+            running--;
+        }
+        slots.release();
+        pending.arriveAndDeregister();
+        dispatch();
+    }
+
+    /**
+     * Wait for every queued task to be done
+     *
+     * @throws RuntimeException the first error thrown by a task
+     */
+    void await() {
+        pending.arriveAndAwaitAdvance();
+        checkError();
+    }
+}
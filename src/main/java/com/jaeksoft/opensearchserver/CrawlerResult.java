@@ -20,6 +20,7 @@ import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.qwazr.crawler.web.WebCrawlItem;
 import com.qwazr.extractor.ParserResult;
+import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -44,11 +45,22 @@ public class CrawlerResult {
     CrawlerResult(final WebCrawlItem webCrawlItem,
                   final ParserResult parserResult,
                   final Exception parsingException) {
-        url = webCrawlItem.getItem().toString();
-        depth = webCrawlItem.getDepth();
-        contentType = webCrawlItem.getContentType();
-        statusCode = webCrawlItem.getStatusCode();
-        crawlingError = webCrawlItem.getError();
+        this(webCrawlItem.getItem().toString(), webCrawlItem.getDepth(), webCrawlItem.getContentType(),
+            webCrawlItem.getStatusCode(), webCrawlItem.getError(), parserResult, parsingException);
+    }
+
+    CrawlerResult(final String url,
+                  final Integer depth,
+                  final String contentType,
+                  final Integer statusCode,
+                  final String crawlingError,
+                  final ParserResult parserResult,
+                  final Exception parsingException) {
+        this.url = url;
+        this.depth = depth;
+        this.contentType = contentType;
+        this.statusCode = statusCode;
+        this.crawlingError = crawlingError;
         parsingError = parsingException == null ? null : parsingException.getMessage();
         if (parserResult != null) {
             metas = parserResult.metas;
@@ -59,4 +71,42 @@ public class CrawlerResult {
         }
     }
 
+    /**
+     * @return a cheap estimation of the size of the serialized result in bytes
+     */
+    long estimateSize() {
+        return estimateSize(url) + estimateSize(contentType) + estimateSize(crawlingError) + estimateSize(parsingError)
+            + estimateSize(metas) + estimateSize(documents) + 32;
+    }
+
+    /**
+     * @param value a string, a number, a map or a collection
+     * @return a cheap estimation of the size of the serialized value in bytes
+     */
+    static long estimateSize(final Object value) {
+        if (value == null)
+            return 0;
+        if (value instanceof CharSequence)
+            return ((CharSequence) value).length() + 2;
+        if (value instanceof Map) {
+            long size = 2;
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+                size += estimateSize(entry.getKey()) + estimateSize(entry.getValue()) + 2;
+            return size;
+        }
+        if (value instanceof Collection) {
+            long size = 2;
+            for (final Object item : (Collection<?>) value)
+                size += estimateSize(item) + 1;
+            return size;
+        }
+        if (value instanceof Object[]) {
+            long size = 2;
+            for (final Object item : (Object[]) value)
+                size += estimateSize(item) + 1;
+            return size;
+        }
+        return 8;
+    }
+
 }
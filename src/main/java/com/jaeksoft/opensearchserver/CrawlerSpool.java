@@ -0,0 +1,333 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.qwazr.utils.LoggerUtils;
+import com.qwazr.utils.ObjectMappers;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.ws.rs.InternalServerErrorException;
+
+/**
+ * Write-ahead spool of the buffered crawl results.
+ * <p>
+ * Every buffered result is appended to the current segment file: a sequence of length-prefixed SMILE records.
+ * The segment is closed and synced when the buffer is flushed, and deleted once the buffer has been posted.
+ * The segments which could not be posted (index service not available, JVM crash) stay on disk
+ * and are replayed, in order, before the next buffers of the same index.
+ * <p>
+ * The spool of an index is owned by one session at a time: the owner holds the lock of the index lock file
+ * until it is closed. The segments left on disk are claimed when the spool is opened,
+ * either by the next crawl session or by the {@link CrawlerSpoolReplayer}.
+ */
+@ThreadSafe
+final class CrawlerSpool implements AutoCloseable {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(CrawlerSpool.class);
+
+    private final static String SUFFIX = ".spool";
+    private final static String LOCK_SUFFIX = "lock";
+    private final static long LOCK_RETRY_MS = 100;
+
+    private final Path directory;
+    private final String prefix;
+    private final String sessionPrefix;
+    private final FileLock indexLock;
+    private final LinkedList<Path> pendingSegments;
+    private final ByteBuffer lengthBuffer;
+    private final Object replayLock;
+    private int segmentCount;
+
+    private Path segmentPath;
+    private FileChannel segmentChannel;
+
+    private CrawlerSpool(final Path directory, final String prefix, final FileLock indexLock) throws IOException {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.sessionPrefix = prefix + UUID.randomUUID() + '.';
+        this.indexLock = indexLock;
+        this.pendingSegments = new LinkedList<>();
+        this.lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+        this.replayLock = new Object();
+        this.segmentCount = 0;
+        claimLeftOverSegments();
+    }
+
+    /**
+     * Open the spool of an index, waiting for the session which owns it
+     *
+     * @param directory the spool directory
+     * @param indexName the name of the index
+     * @param waitMs    how long to wait for the lock of the index
+     * @return the spool, or null if another session still owns it
+     * @throws IOException if the spool directory cannot be read
+     */
+    static CrawlerSpool open(final Path directory, final String indexName, final long waitMs) throws IOException {
+        if (!Files.exists(directory))
+            Files.createDirectories(directory);
+        final String prefix = toPrefix(indexName);
+        final Path lockPath = directory.resolve(prefix + LOCK_SUFFIX);
+        final long deadline = System.currentTimeMillis() + waitMs;
+        FileLock lock;
+        while ((lock = tryLock(lockPath)) == null) {
+            if (System.currentTimeMillis() >= deadline)
+                return null;
+            try {
+                Thread.sleep(LOCK_RETRY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        try {
+            return new CrawlerSpool(directory, prefix, lock);
+        } catch (IOException | RuntimeException e) {
+            lock.channel().close();
+            throw e;
+        }
+    }
+
+    private static FileLock tryLock(final Path lockPath) throws IOException {
+        final FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            final FileLock lock = channel.tryLock();
+            if (lock != null)
+                return lock;
+        } catch (OverlappingFileLockException e) {
+            // Owned by another session of this JVM
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        channel.close();
+        return null;
+    }
+
+    /**
+     * The prefix can be decoded back to the index name: the dot only separates the parts of the file names.
+     */
+    static String toPrefix(final String indexName) {
+        return URLEncoder.encode(indexName, StandardCharsets.UTF_8).replace(".", "%2E").replace("*", "%2A") + '.';
+    }
+
+    /**
+     * @param directory the spool directory
+     * @return the names of the indexes having segments in the spool directory
+     * @throws IOException if the spool directory cannot be read
+     */
+    static Set<String> getSpooledIndexes(final Path directory) throws IOException {
+        if (!Files.exists(directory))
+            return Set.of();
+        try (final Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                .filter(fileName -> fileName.endsWith(SUFFIX) && fileName.indexOf('.') > 0)
+                .map(fileName -> fileName.substring(0, fileName.indexOf('.')))
+                .map(encodedName -> URLDecoder.decode(encodedName, StandardCharsets.UTF_8))
+                .collect(Collectors.toCollection(TreeSet::new));
+        }
+    }
+
+    private Path nextSegmentPath() {
+        return directory.resolve(sessionPrefix + String.format("%08d", segmentCount++) + SUFFIX);
+    }
+
+    /**
+     * The lock of the index is held: every segment of the index belongs to this spool.
+     */
+    private void claimLeftOverSegments() throws IOException {
+        try (final Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> {
+                final String fileName = file.getFileName().toString();
+                return fileName.startsWith(prefix) && fileName.endsWith(SUFFIX);
+            })
+                .sorted(Comparator.comparingLong((Path file) -> file.toFile().lastModified())
+                    .thenComparing(Path::getFileName))
+                .forEach(pendingSegments::add);
+        }
+        if (!pendingSegments.isEmpty())
+            LOGGER.info(() -> pendingSegments.size() + " spooled segment(s) to replay for " + prefix);
+    }
+
+    /**
+     * Append a result to the current segment
+     *
+     * @param document the result, serialized as is
+     */
+    synchronized void append(final Object document) {
+        try {
+            if (segmentChannel == null) {
+                segmentPath = nextSegmentPath();
+                segmentChannel = FileChannel.open(segmentPath, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+            }
+            final byte[] bytes = ObjectMappers.SMILE.writeValueAsBytes(document);
+            lengthBuffer.clear();
+            lengthBuffer.putInt(bytes.length).flip();
+            final ByteBuffer bytesBuffer = ByteBuffer.wrap(bytes);
+            while (lengthBuffer.hasRemaining())
+                segmentChannel.write(lengthBuffer);
+            while (bytesBuffer.hasRemaining())
+                segmentChannel.write(bytesBuffer);
+        } catch (IOException e) {
+            throw new InternalServerErrorException("Cannot write the spool segment: " + segmentPath, e);
+        }
+    }
+
+    /**
+     * Close and sync the current segment
+     *
+     * @return the path of the closed segment, or null if there was no segment
+     */
+    synchronized Path closeSegment() {
+        if (segmentChannel == null)
+            return null;
+        final Path closedPath = segmentPath;
+        try {
+            segmentChannel.force(false);
+            segmentChannel.close();
+        } catch (IOException e) {
+            throw new InternalServerErrorException("Cannot close the spool segment: " + segmentPath, e);
+        } finally {
+            segmentChannel = null;
+            segmentPath = null;
+        }
+        return closedPath;
+    }
+
+    /**
+     * The segment has been posted, it can be removed
+     */
+    void delete(final Path segment) {
+        try {
+            Files.deleteIfExists(segment);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Cannot delete the spool segment: " + segment);
+        }
+    }
+
+    /**
+     * The segment could not be posted, it will be replayed
+     */
+    synchronized void retain(final Path segment) {
+        pendingSegments.add(segment);
+    }
+
+    synchronized int getPendingCount() {
+        return pendingSegments.size();
+    }
+
+    /**
+     * Read a segment. An incomplete trailing record is ignored.
+     */
+    static ArrayNode read(final Path segment) throws IOException {
+        final ArrayNode documents = ObjectMappers.SMILE.createArrayNode();
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment));
+        while (buffer.remaining() >= Integer.BYTES) {
+            final int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining())
+                break;
+            final byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            documents.add(ObjectMappers.SMILE.readTree(bytes));
+        }
+        return documents;
+    }
+
+    /**
+     * Post the pending segments in order, and delete them once posted.
+     * A segment which cannot be read is renamed with the ".corrupted" extension and skipped.
+     *
+     * @param poster the function posting the documents to the index
+     * @return true if every pending segment has been posted
+     */
+    boolean replay(final Consumer<ArrayNode> poster) {
+        synchronized (replayLock) {
+            Path segment;
+            while ((segment = getFirstPending()) != null) {
+                final Path currentSegment = segment;
+                final ArrayNode documents;
+                try {
+                    documents = read(currentSegment);
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, e, () -> "Cannot read the spool segment: " + currentSegment);
+                    try {
+                        Files.move(currentSegment,
+                            currentSegment.resolveSibling(currentSegment.getFileName() + ".corrupted"));
+                    } catch (IOException ioe) {
+                        LOGGER.log(Level.WARNING, ioe, () -> "Cannot rename the spool segment: " + currentSegment);
+                    }
+                    removePending(currentSegment);
+                    continue;
+                }
+                try {
+                    if (!documents.isEmpty())
+                        poster.accept(documents);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, e, () -> "Cannot replay the spool segment: " + currentSegment);
+                    return false;
+                }
+                delete(currentSegment);
+                removePending(currentSegment);
+            }
+            return true;
+        }
+    }
+
+    private synchronized Path getFirstPending() {
+        return pendingSegments.peekFirst();
+    }
+
+    private synchronized void removePending(final Path segment) {
+        pendingSegments.remove(segment);
+    }
+
+    /**
+     * Release the lock of the index. The segments which have not been posted stay on disk.
+     */
+    @Override
+    public void close() {
+        try {
+            closeSegment();
+        } finally {
+            try {
+                indexLock.channel().close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, e, () -> "Cannot release the spool lock of " + prefix);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.qwazr.utils.LoggerUtils;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Replay the spooled segments which are not owned by a crawl session:
+ * the segments left by a previous process, and the ones a session could not post before it ended.
+ * The spool directory is scanned at startup, then periodically until the index service is available again.
+ */
+@ThreadSafe
+final class CrawlerSpoolReplayer implements AutoCloseable {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(CrawlerSpoolReplayer.class);
+
+    private final Path directory;
+    private final BiConsumer<String, ArrayNode> poster;
+    private final long periodMs;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param directory the spool directory
+     * @param poster    the function posting the documents to the given index
+     * @param periodMs  the delay between two scans of the spool directory
+     */
+    CrawlerSpoolReplayer(final Path directory, final BiConsumer<String, ArrayNode> poster, final long periodMs) {
+        this.directory = directory;
+        this.poster = poster;
+        this.periodMs = periodMs;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "crawl-spool-replayer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Schedule the scans, the first one starts immediately
+     *
+     * @return this replayer
+     */
+    CrawlerSpoolReplayer start() {
+        scheduler.scheduleWithFixedDelay(this::replayAll, 0, periodMs, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * The indexes owned by a running crawl session are skipped, the session replays its own segments.
+     *
+     * @return the number of segments still pending
+     */
+    int replayAll() {
+        int pendingCount = 0;
+        try {
+            for (final String indexName : CrawlerSpool.getSpooledIndexes(directory)) {
+                try (final CrawlerSpool spool = CrawlerSpool.open(directory, indexName, 0)) {
+                    if (spool == null)
+                        continue;
+                    if (!spool.replay(documents -> poster.accept(indexName, documents)))
+                        pendingCount += spool.getPendingCount();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Cannot replay the spool directory: " + directory);
+        }
+        return pendingCount;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.qwazr.extractor.ParserResult;
+import com.qwazr.utils.LoggerUtils;
+import com.qwazr.utils.ObjectMappers;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Content-addressable cache of the extraction results.
+ * <p>
+ * The key is the SHA-256 digest of the content, the media type and its normalized charset parameter
+ * (the same bytes decoded with another charset give another text),
+ * the same document linked from several URLs is extracted only once.
+ * The memory tier is a LRU bounded by the estimated size of the results.
+ * The optional disk tier stores the results as SMILE files, the oldest files are deleted when the size limit is
+ * reached.
+ */
+@ThreadSafe
+public class ExtractionCache {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(ExtractionCache.class);
+
+    private final static String FILE_SUFFIX = ".smile";
+
+    private final long maxMemoryBytes;
+    private final LinkedHashMap<String, Entry> memoryEntries;
+    private long memoryBytes;
+
+    private final Path diskDirectory;
+    private final long maxDiskBytes;
+    private final LinkedHashMap<String, Long> diskEntries;
+    private long diskBytes;
+
+    private final LongAdder memoryHits;
+    private final LongAdder diskHits;
+    private final LongAdder misses;
+
+    /**
+     * @param maxMemoryBytes the size of the memory tier, 0 to disable the cache
+     * @param diskDirectory  the directory of the disk tier, null to disable the disk tier
+     * @param maxDiskBytes   the size of the disk tier
+     * @throws IOException if the disk tier cannot be read
+     */
+    public ExtractionCache(final long maxMemoryBytes,
+                           final Path diskDirectory,
+                           final long maxDiskBytes) throws IOException {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.memoryEntries = new LinkedHashMap<>(16, 0.75f, true);
+        this.diskDirectory = maxDiskBytes > 0 ? diskDirectory : null;
+        this.maxDiskBytes = maxDiskBytes;
+        this.diskEntries = new LinkedHashMap<>(16, 0.75f, true);
+        this.memoryHits = new LongAdder();
+        this.diskHits = new LongAdder();
+        this.misses = new LongAdder();
+        if (this.diskDirectory != null)
+            loadDiskEntries();
+    }
+
+    private void loadDiskEntries() throws IOException {
+        if (!Files.exists(diskDirectory))
+            Files.createDirectories(diskDirectory);
+        try (final Stream<Path> files = Files.list(diskDirectory)) {
+            files.filter(file -> file.getFileName().toString().endsWith(FILE_SUFFIX))
+                .sorted(Comparator.comparingLong(file -> file.toFile().lastModified()))
+                .forEach(file -> {
+                    final String fileName = file.getFileName().toString();
+                    final long size = file.toFile().length();
+                    diskEntries.put(fileName.substring(0, fileName.length() - FILE_SUFFIX.length()), size);
+                    diskBytes += size;
+                });
+        }
+        evictDisk();
+    }
+
+    public boolean isEnabled() {
+        return maxMemoryBytes > 0;
+    }
+
+    private static String getKey(final byte[] digest, final MediaType mediaType) {
+        final StringBuilder sb = new StringBuilder(digest.length * 2 + 32);
+        for (final byte b : digest)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        if (mediaType != null) {
+            sb.append('-').append(mediaType.getType()).append('_').append(mediaType.getSubtype());
+            final String charset = getCharset(mediaType);
+            if (charset != null)
+                sb.append('_').append(charset);
+        }
+        return sb.toString().replaceAll("[^a-zA-Z0-9._-]", "_");
+    }
+
+    /**
+     * @return the canonical name of the charset parameter in lower case, or null if there is none
+     */
+    private static String getCharset(final MediaType mediaType) {
+        final String charset = mediaType.getParameters().get(MediaType.CHARSET_PARAMETER);
+        if (charset == null || charset.isBlank())
+            return null;
+        try {
+            return Charset.forName(charset.trim()).name().toLowerCase(Locale.ROOT);
+        } catch (IllegalArgumentException e) {
+            return charset.trim().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * @param digest    the SHA-256 digest of the content
+     * @param mediaType the media type of the content
+     * @return the cached extraction result, or null
+     */
+    public ParserResult get(final byte[] digest, final MediaType mediaType) {
+        if (!isEnabled())
+            return null;
+        final String key = getKey(digest, mediaType);
+        synchronized (memoryEntries) {
+            final Entry entry = memoryEntries.get(key);
+            if (entry != null) {
+                memoryHits.increment();
+                return entry.parserResult;
+            }
+        }
+        final ParserResult parserResult = getFromDisk(key);
+        if (parserResult != null) {
+            diskHits.increment();
+            putInMemory(key, parserResult);
+            return parserResult;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Store an extraction result
+     *
+     * @param digest       the SHA-256 digest of the content
+     * @param mediaType    the media type of the content
+     * @param parserResult the extraction result
+     */
+    public void put(final byte[] digest, final MediaType mediaType, final ParserResult parserResult) {
+        if (!isEnabled() || parserResult == null)
+            return;
+        final String key = getKey(digest, mediaType);
+        putInMemory(key, parserResult);
+        putOnDisk(key, parserResult);
+    }
+
+    private void putInMemory(final String key, final ParserResult parserResult) {
+        final long size = CrawlerResult.estimateSize(parserResult.metas)
+            + CrawlerResult.estimateSize(parserResult.documents) + key.length();
+        if (size > maxMemoryBytes)
+            return;
+        synchronized (memoryEntries) {
+            final Entry previous = memoryEntries.put(key, new Entry(parserResult, size));
+            if (previous != null)
+                memoryBytes -= previous.size;
+            memoryBytes += size;
+            final Iterator<Entry> iterator = memoryEntries.values().iterator();
+            while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+                memoryBytes -= iterator.next().size;
+                iterator.remove();
+            }
+        }
+    }
+
+    private ParserResult getFromDisk(final String key) {
+        if (diskDirectory == null)
+            return null;
+        synchronized (diskEntries) {
+            if (diskEntries.get(key) == null)
+                return null;
+        }
+        try {
+            return ObjectMappers.SMILE.readValue(diskDirectory.resolve(key + FILE_SUFFIX).toFile(),
+                ParserResult.class);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Cannot read the cached extraction: " + key);
+            return null;
+        }
+    }
+
+    private void putOnDisk(final String key, final ParserResult parserResult) {
+        if (diskDirectory == null)
+            return;
+        final String fileName = key + FILE_SUFFIX;
+        try {
+            final Path tempFile = Files.createTempFile(diskDirectory, key, ".tmp");
+            ObjectMappers.SMILE.writeValue(tempFile.toFile(), parserResult);
+            final long size = Files.size(tempFile);
+            Files.move(tempFile, diskDirectory.resolve(fileName), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            synchronized (diskEntries) {
+                final Long previous = diskEntries.put(key, size);
+                if (previous != null)
+                    diskBytes -= previous;
+                diskBytes += size;
+                evictDisk();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Cannot write the cached extraction: " + key);
+        }
+    }
+
+    private void evictDisk() {
+        synchronized (diskEntries) {
+            final Iterator<Map.Entry<String, Long>> iterator = diskEntries.entrySet().iterator();
+            while (diskBytes > maxDiskBytes && iterator.hasNext()) {
+                final Map.Entry<String, Long> entry = iterator.next();
+                try {
+                    Files.deleteIfExists(diskDirectory.resolve(entry.getKey() + FILE_SUFFIX));
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, e, () -> "Cannot delete the cached extraction: " + entry.getKey());
+                }
+                diskBytes -= entry.getValue();
+                iterator.remove();
+            }
+        }
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.sum();
+    }
+
+    public long getDiskHits() {
+        return diskHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getMemoryBytes() {
+        synchronized (memoryEntries) {
+            return memoryBytes;
+        }
+    }
+
+    public long getDiskBytes() {
+        synchronized (diskEntries) {
+            return diskBytes;
+        }
+    }
+
+    private final static class Entry {
+
+        private final ParserResult parserResult;
+        private final long size;
+
+        private Entry(final ParserResult parserResult, final long size) {
+            this.parserResult = parserResult;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.qwazr.extractor.ExtractorServiceInterface;
+import com.qwazr.extractor.ParserResult;
+import com.qwazr.utils.LoggerUtils;
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Bounded pool running the document extractions out of the crawler threads.
+ * <p>
+ * Three limits apply, the caller is blocked until the document fits:
+ * <ul>
+ * <li>the number of concurrent extractions for a given media type,</li>
+ * <li>the number of bytes waiting for or being extracted,</li>
+ * <li>a hard timeout per document, which interrupts the extraction and reports a {@link TimeoutException}.</li>
+ * </ul>
+ * A parser which ignores the interruption keeps its permits until it returns.
+ */
+@ThreadSafe
+public class ExtractionPool implements AutoCloseable {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(ExtractionPool.class);
+
+    private final static int TIMEOUT_CALLBACK_THREADS = 2;
+
+    private final ExtractorServiceInterface extractorService;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timeoutScheduler;
+    private final ExecutorService timeoutCallbacks;
+    private final long timeoutMs;
+    private final int maxInflightKb;
+    private final Semaphore inflightKb;
+    private final Map<String, Integer> concurrencyPerMediaType;
+    private final Map<String, Semaphore> mediaTypeSlots;
+    private final LatencyHistogram extractionTime;
+
+    /**
+     * @param extractorService        the extractor service
+     * @param executor                the executor running the extractions
+     * @param timeoutMs               the hard timeout per document in milliseconds
+     * @param maxInflightBytes        the maximum number of bytes waiting for or being extracted
+     * @param concurrencyPerMediaType the maximum number of concurrent extractions per media type
+     * @param extractionTime          the histogram of the extraction durations
+     */
+    public ExtractionPool(final ExtractorServiceInterface extractorService,
+                          final ExecutorService executor,
+                          final long timeoutMs,
+                          final long maxInflightBytes,
+                          final Map<String, Integer> concurrencyPerMediaType,
+                          final LatencyHistogram extractionTime) {
+        this.extractorService = extractorService;
+        this.executor = executor;
+        this.timeoutMs = timeoutMs;
+        this.timeoutScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "extraction-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // The callback of a timed out extraction may block (indexing backpressure):
+        // it does not run on the scheduler, which would delay the other timeouts.
+        // A few threads are enough, the other callbacks wait in the queue.
+        final AtomicInteger callbackThreads = new AtomicInteger();
+        this.timeoutCallbacks = Executors.newFixedThreadPool(TIMEOUT_CALLBACK_THREADS, runnable -> {
+            final Thread thread = new Thread(runnable, "extraction-timeout-callback-"
+                + callbackThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxInflightKb = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxInflightBytes / 1024));
+        this.inflightKb = new Semaphore(maxInflightKb);
+        this.concurrencyPerMediaType = concurrencyPerMediaType;
+        this.mediaTypeSlots = new ConcurrentHashMap<>();
+        this.extractionTime = extractionTime;
+    }
+
+    private Semaphore getMediaTypeSlots(final MediaType mediaType) {
+        if (mediaType == null)
+            return null;
+        final String type = mediaType.getType() + '/' + mediaType.getSubtype();
+        final Integer concurrency = concurrencyPerMediaType.get(type);
+        if (concurrency == null)
+            return null;
+        return mediaTypeSlots.computeIfAbsent(type, t -> new Semaphore(concurrency));
+    }
+
+    /**
+     * Queue the extraction of a document. The caller is blocked while the limits are reached.
+     * The callback is called exactly once, either with the result or with the error.
+     *
+     * @param bytes     the content of the document
+     * @param mediaType the media type of the document
+     * @param callback  the consumer of the result or of the error
+     */
+    public void extract(final byte[] bytes,
+                        final MediaType mediaType,
+                        final BiConsumer<ParserResult, Exception> callback) {
+        final int kb = Math.min(maxInflightKb, Math.max(1, bytes.length / 1024));
+        final Semaphore typeSlots = getMediaTypeSlots(mediaType);
+        try {
+            if (typeSlots != null)
+                typeSlots.acquire();
+            try {
+                inflightKb.acquire(kb);
+            } catch (InterruptedException e) {
+                if (typeSlots != null)
+                    typeSlots.release();
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalServerErrorException("Interrupted while waiting for the extraction pool", e);
+        }
+        try {
+            executor.execute(new Task(bytes, mediaType, kb, typeSlots, callback));
+        } catch (RejectedExecutionException e) {
+            inflightKb.release(kb);
+            if (typeSlots != null)
+                typeSlots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Run a periodic task of a crawl session (the age check of its buffer) from the timeout scheduler.
+     * Like the timeout callbacks, the task may block: it runs on the callback threads,
+     * and a run is skipped while the previous one is not done.
+     *
+     * @param task    the periodic task
+     * @param delayMs the delay between two runs in milliseconds
+     * @return the future to cancel when the session ends
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(final Runnable task, final long delayMs) {
+        final AtomicBoolean running = new AtomicBoolean();
+        return timeoutScheduler.scheduleWithFixedDelay(() -> {
+            if (!running.compareAndSet(false, true))
+                return;
+            try {
+                timeoutCallbacks.execute(() -> {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Error while running a periodic task", e);
+                    } finally {
+                        running.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The pool is closed
+                running.set(false);
+            }
+        }, delayMs, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the number of bytes waiting for or being extracted
+     */
+    public long getInflightBytes() {
+        return (long) (maxInflightKb - inflightKb.availablePermits()) * 1024;
+    }
+
+    @Override
+    public void close() {
+        timeoutScheduler.shutdownNow();
+        timeoutCallbacks.shutdown();
+    }
+
+    private class Task implements Runnable {
+
+        private final byte[] bytes;
+        private final MediaType mediaType;
+        private final int kb;
+        private final Semaphore typeSlots;
+        private final BiConsumer<ParserResult, Exception> callback;
+
+        private boolean finished;
+        private boolean timedOut;
+
+        private Task(final byte[] bytes,
+                     final MediaType mediaType,
+                     final int kb,
+                     final Semaphore typeSlots,
+                     final BiConsumer<ParserResult, Exception> callback) {
+            this.bytes = bytes;
+            this.mediaType = mediaType;
+            this.kb = kb;
+            this.typeSlots = typeSlots;
+            this.callback = callback;
+        }
+
+        private void timeout(final Thread worker) {
+            synchronized (this) {
+                if (finished)
+                    return;
+                timedOut = true;
+                worker.interrupt();
+            }
+            final TimeoutException error = new TimeoutException("The extraction took more than " + timeoutMs + " ms");
+            try {
+                timeoutCallbacks.execute(() -> accept(null, error));
+            } catch (RejectedExecutionException e) {
+                // The pool is closed
+                accept(null, error);
+            }
+        }
+
+        private void accept(final ParserResult parserResult, final Exception error) {
+            try {
+                callback.accept(parserResult, error);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Error while consuming an extraction result", e);
+            }
+        }
+
+        @Override
+        public void run() {
+            final Thread worker = Thread.currentThread();
+            final ScheduledFuture<?> timeout = timeoutScheduler.schedule(
+                () -> timeout(worker), timeoutMs, TimeUnit.MILLISECONDS);
+            ParserResult parserResult = null;
+            Exception error = null;
+            final long start = System.nanoTime();
+            try {
+                parserResult = extractorService.extract(null, new ByteArrayInputStream(bytes), mediaType);
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                extractionTime.record(System.nanoTime() - start);
+                timeout.cancel(false);
+                inflightKb.release(kb);
+                if (typeSlots != null)
+                    typeSlots.release();
+            }
+            final boolean wasTimedOut;
+            synchronized (this) {
+                finished = true;
+                wasTimedOut = timedOut;
+            }
+            // Clear an interruption sent by the timeout
+            Thread.interrupted();
+            if (!wasTimedOut)
+                accept(parserResult, error);
+        }
+    }
+}
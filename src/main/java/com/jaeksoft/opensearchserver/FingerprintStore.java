@@ -0,0 +1,252 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.qwazr.utils.LoggerUtils;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.ws.rs.InternalServerErrorException;
+
+/**
+ * Persistent store of the content digest of every crawled URL, used to skip the unchanged pages.
+ * <p>
+ * The store is an append-only file of fixed size records: the MD5 of the index scope and the URL,
+ * followed by the SHA-256 of the content. The file is memory-mapped and loaded at startup,
+ * an incomplete trailing record (crash) is dropped.
+ * Every update of a URL appends a record, the previous one is dead: the file is compacted, at startup or
+ * while crawling, as soon as it contains more than twice the number of live records.
+ * <p>
+ * The lookups are served from the heap: each URL costs about 120 bytes (the key, the digest array
+ * and the entry of the hash map), e.g. 120 MB of heap for one million crawled URLs.
+ */
+@ThreadSafe
+public class FingerprintStore implements AutoCloseable {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(FingerprintStore.class);
+
+    private final static int KEY_SIZE = 16;
+    private final static int DIGEST_SIZE = 32;
+    private final static int RECORD_SIZE = KEY_SIZE + DIGEST_SIZE;
+    private final static int COMPACTION_MIN_RECORDS = 10000;
+
+    private final Path storePath;
+    private final Map<Key, byte[]> fingerprints;
+    private final ByteBuffer record;
+    private final int compactionMinRecords;
+    private FileChannel channel;
+    private long records;
+
+    public FingerprintStore(final Path storePath) throws IOException {
+        this(storePath, COMPACTION_MIN_RECORDS);
+    }
+
+    FingerprintStore(final Path storePath, final int compactionMinRecords) throws IOException {
+        this.storePath = storePath;
+        this.fingerprints = new ConcurrentHashMap<>();
+        this.record = ByteBuffer.allocate(RECORD_SIZE);
+        this.compactionMinRecords = compactionMinRecords;
+        records = load();
+        if (isCompactionNeeded())
+            compact();
+        channel = openAppend();
+    }
+
+    private FileChannel openAppend() throws IOException {
+        return FileChannel.open(storePath,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private boolean isCompactionNeeded() {
+        return records > compactionMinRecords && records > fingerprints.size() * 2L;
+    }
+
+    private long load() throws IOException {
+        if (!Files.exists(storePath))
+            return 0;
+        try (final FileChannel readChannel = FileChannel.open(storePath, StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+            final long size = readChannel.size();
+            final long records = size / RECORD_SIZE;
+            final long validSize = records * RECORD_SIZE;
+            if (validSize > 0) {
+                final MappedByteBuffer buffer = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, validSize);
+                final byte[] keyBytes = new byte[KEY_SIZE];
+                for (long i = 0; i < records; i++) {
+                    buffer.get(keyBytes);
+                    final byte[] digest = new byte[DIGEST_SIZE];
+                    buffer.get(digest);
+                    fingerprints.put(new Key(keyBytes), digest);
+                }
+            }
+            if (validSize != size) {
+                LOGGER.warning(() -> "Truncating an incomplete fingerprint record: " + storePath);
+                readChannel.truncate(validSize);
+            }
+            return records;
+        }
+    }
+
+    private void compact() throws IOException {
+        final Path tempPath = storePath.resolveSibling(storePath.getFileName() + ".tmp");
+        try (final FileChannel tempChannel = FileChannel.open(tempPath,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (final Map.Entry<Key, byte[]> entry : fingerprints.entrySet())
+                write(tempChannel, entry.getKey(), entry.getValue());
+            tempChannel.force(true);
+        }
+        Files.move(tempPath, storePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = fingerprints.size();
+    }
+
+    /**
+     * Rewrite the live records while the store is open. The caller holds the lock.
+     */
+    private void compactOpened() throws IOException {
+        channel.force(false);
+        channel.close();
+        channel = null;
+        try {
+            compact();
+        } finally {
+            channel = openAppend();
+        }
+    }
+
+    private void write(final FileChannel fileChannel, final Key key, final byte[] digest) throws IOException {
+        record.clear();
+        record.putLong(key.high).putLong(key.low).put(digest);
+        record.flip();
+        while (record.hasRemaining())
+            fileChannel.write(record);
+    }
+
+    private static MessageDigest getMessageDigest(final String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new InternalServerErrorException("Digest not available: " + algorithm, e);
+        }
+    }
+
+    /**
+     * @param content the content of a document
+     * @return the SHA-256 digest of the content
+     */
+    public static byte[] digest(final byte[] content) {
+        return getMessageDigest("SHA-256").digest(content);
+    }
+
+    private static Key key(final String indexScope, final String url) {
+        final MessageDigest md5 = getMessageDigest("MD5");
+        md5.update(indexScope.getBytes(StandardCharsets.UTF_8));
+        md5.update((byte) '\n');
+        return new Key(md5.digest(url.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @param indexScope the name and the UUID of the index
+     * @param url        the URL of the document
+     * @param digest     the digest of the current content
+     * @return true if the same content has already been indexed for this URL
+     */
+    public boolean isUnchanged(final String indexScope, final String url, final byte[] digest) {
+        return Arrays.equals(fingerprints.get(key(indexScope, url)), digest);
+    }
+
+    /**
+     * Record the digest of the content indexed for this URL
+     *
+     * @param indexScope the name and the UUID of the index
+     * @param url        the URL of the document
+     * @param digest     the digest of the indexed content
+     */
+    public void put(final String indexScope, final String url, final byte[] digest) {
+        final Key key = key(indexScope, url);
+        synchronized (this) {
+            if (channel == null)
+                throw new IllegalStateException("The fingerprint store is closed: " + storePath);
+            if (Arrays.equals(fingerprints.put(key, digest), digest))
+                return;
+            try {
+                write(channel, key, digest);
+                records++;
+                if (isCompactionNeeded())
+                    compactOpened();
+            } catch (IOException e) {
+                throw new InternalServerErrorException("Cannot write the fingerprint store: " + storePath, e);
+            }
+        }
+    }
+
+    public int size() {
+        return fingerprints.size();
+    }
+
+    /**
+     * @return the number of records in the file, including the dead ones
+     */
+    synchronized long getRecords() {
+        return records;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null)
+            return;
+        channel.force(false);
+        channel.close();
+        channel = null;
+    }
+
+    private final static class Key {
+
+        private final long high;
+        private final long low;
+
+        private Key(final byte[] bytes) {
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            high = buffer.getLong();
+            low = buffer.getLong();
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof Key))
+                return false;
+            final Key o = (Key) other;
+            return high == o.high && low == o.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(high ^ low);
+        }
+    }
+}
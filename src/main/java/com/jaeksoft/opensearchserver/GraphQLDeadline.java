@@ -0,0 +1,59 @@
+/*
+ *  Copyright 2015-2020 Emmanuel Keller / QWAZR
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import graphql.GraphQLContext;
+import graphql.execution.AbortExecutionException;
+import graphql.schema.DataFetcher;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The deadline of a GraphQL execution, stored in the context of the ExecutionInput.
+ * <p>
+ * Cancelling the future of an execution does not stop graphql-java: the remaining fields would still be fetched.
+ * Every data fetcher is wrapped by {@link #checked(DataFetcher)}: a fetcher starting after the deadline fails at once,
+ * including the blocking ones already waiting in the executor. A fetcher already running is not interrupted.
+ */
+final class GraphQLDeadline {
+
+    final static String DEADLINE = "deadline";
+
+    /**
+     * @param context   the context of the execution
+     * @param timeoutMs the maximum duration of the execution in milliseconds
+     * @return the context with the deadline
+     */
+    static GraphQLContext.Builder start(final GraphQLContext.Builder context, final long timeoutMs) {
+        return context.of(DEADLINE, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+    }
+
+    /**
+     * @param dataFetcher the data fetcher to wrap
+     * @return a data fetcher failing with an {@link AbortExecutionException} once the deadline is reached
+     */
+    static <T> DataFetcher<T> checked(final DataFetcher<T> dataFetcher) {
+        return environment -> {
+            final Object context = environment.getContext();
+            if (context instanceof GraphQLContext) {
+                final Long deadline = ((GraphQLContext) context).get(DEADLINE);
+                if (deadline != null && System.nanoTime() - deadline >= 0)
+                    throw new AbortExecutionException("The query took too long, the field is not fetched: "
+                        + environment.getField().getName());
+            }
+            return dataFetcher.get(environment);
+        };
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import graphql.ExecutionResult;
+import graphql.ExecutionResultImpl;
+import graphql.GraphQLContext;
+import graphql.execution.instrumentation.InstrumentationContext;
+import graphql.execution.instrumentation.InstrumentationState;
+import graphql.execution.instrumentation.SimpleInstrumentation;
+import graphql.execution.instrumentation.SimpleInstrumentationContext;
+import graphql.execution.instrumentation.parameters.InstrumentationCreateStateParameters;
+import graphql.execution.instrumentation.parameters.InstrumentationExecutionParameters;
+import graphql.execution.instrumentation.parameters.InstrumentationFieldFetchParameters;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLNamedType;
+import graphql.schema.GraphQLType;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Measure the duration of the data fetchers, including the asynchronous ones.
+ * <p>
+ * The durations of a sample of the fetches (one out of {@link #SAMPLE_RATE}) are aggregated per field
+ * for the whole server: the other fetches get a shared no-op context and allocate nothing.
+ * When the request asks for it (context entry {@link #FIELD_TIMING}),
+ * every fetch of the request is timed and returned in the "fieldTiming" extension.
+ */
+@ThreadSafe
+class GraphQLFieldTimingInstrumentation extends SimpleInstrumentation {
+
+    final static String FIELD_TIMING = "fieldTiming";
+
+    final static int SAMPLE_RATE = 16;
+
+    // SimpleInstrumentationContext.noOp() creates a new instance, this one has no state and can be shared
+    private final static InstrumentationContext<Object> NO_OP = SimpleInstrumentationContext.noOp();
+
+    private final Map<GraphQLFieldDefinition, FieldHistogram> fieldHistograms = new ConcurrentHashMap<>();
+
+    @Override
+    public InstrumentationState createState(final InstrumentationCreateStateParameters parameters) {
+        final Object context = parameters.getExecutionInput().getContext();
+        if (context instanceof GraphQLContext && Boolean.TRUE.equals(((GraphQLContext) context).get(FIELD_TIMING)))
+            return new RequestTiming();
+        return null;
+    }
+
+    @Override
+    public InstrumentationContext<Object> beginFieldFetch(final InstrumentationFieldFetchParameters parameters) {
+        final RequestTiming requestTiming = parameters.getInstrumentationState();
+        final boolean sampled = ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0;
+        if (requestTiming == null && !sampled)
+            return NO_OP;
+        final GraphQLFieldDefinition field = parameters.getField();
+        FieldHistogram histogram = fieldHistograms.get(field);
+        if (histogram == null)
+            histogram = fieldHistograms.computeIfAbsent(field,
+                f -> new FieldHistogram(getFieldName(parameters.getEnvironment().getParentType(), f)));
+        final FieldHistogram fieldHistogram = histogram;
+        final long start = System.nanoTime();
+        return SimpleInstrumentationContext.whenCompleted((result, error) -> {
+            final long nanos = System.nanoTime() - start;
+            if (sampled)
+                fieldHistogram.histogram.record(nanos);
+            if (requestTiming != null)
+                requestTiming.record(fieldHistogram.name, nanos);
+        });
+    }
+
+    @Override
+    public CompletableFuture<ExecutionResult> instrumentExecutionResult(
+        final ExecutionResult executionResult,
+        final InstrumentationExecutionParameters parameters) {
+        final RequestTiming requestTiming = parameters.getInstrumentationState();
+        if (requestTiming == null)
+            return CompletableFuture.completedFuture(executionResult);
+        return CompletableFuture.completedFuture(ExecutionResultImpl.newExecutionResult()
+            .from(executionResult)
+            .addExtension(FIELD_TIMING, requestTiming.toExtension())
+            .build());
+    }
+
+    private static String getFieldName(final GraphQLType parentType, final GraphQLFieldDefinition field) {
+        return parentType instanceof GraphQLNamedType ?
+            ((GraphQLNamedType) parentType).getName() + '.' + field.getName() :
+            field.getName();
+    }
+
+    /**
+     * @return the histogram of the sampled fetches of every field, by name (Type.field)
+     */
+    Map<String, LatencyHistogram> getFieldHistograms() {
+        final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+        fieldHistograms.values().forEach(fieldHistogram -> histograms.put(fieldHistogram.name,
+            fieldHistogram.histogram));
+        return histograms;
+    }
+
+    static Map<String, Object> toTiming(final LatencyHistogram histogram) {
+        return Map.of("count", histogram.getCount(),
+            "p50Ms", toMillis(histogram.getQuantile(0.5)),
+            "p99Ms", toMillis(histogram.getQuantile(0.99)));
+    }
+
+    private static double toMillis(final long nanos) {
+        return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private final static class FieldHistogram {
+
+        private final String name;
+        private final LatencyHistogram histogram;
+
+        private FieldHistogram(final String name) {
+            this.name = name;
+            this.histogram = new LatencyHistogram();
+        }
+    }
+
+    private final static class RequestTiming implements InstrumentationState {
+
+        private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+        private void record(final String name, final long nanos) {
+            histograms.computeIfAbsent(name, n -> new LatencyHistogram()).record(nanos);
+        }
+
+        private Map<String, Object> toExtension() {
+            final Map<String, Object> extension = new LinkedHashMap<>();
+            histograms.forEach((name, histogram) -> extension.put(name, toTiming(histogram)));
+            return extension;
+        }
+    }
+}
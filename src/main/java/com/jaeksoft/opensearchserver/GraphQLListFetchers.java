@@ -0,0 +1,314 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.qwazr.crawler.web.WebCrawlerServiceInterface;
+import com.qwazr.search.index.IndexServiceInterface;
+import graphql.schema.DataFetcher;
+import graphql.schema.DataFetchingEnvironment;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.dataloader.BatchLoader;
+import org.dataloader.DataLoader;
+
+/**
+ * The resolvers of the index, crawl and query lists.
+ * <p>
+ * The fields go through a DataLoader: the lists requested by one operation are resolved
+ * with a single call to the index service and a single call to the crawler service,
+ * and the same list requested twice is served from the cache of the request.
+ * <p>
+ * The connection fields (indexes, crawls, queries) are paginated with a cursor: the names are sorted,
+ * and the cursor is the last name returned. The next page starts after this name,
+ * it does not shift when a name is created or deleted before it.
+ */
+class GraphQLListFetchers implements GraphQLService.DataFetcherProvider, GraphQLService.DataLoaderProvider {
+
+    final static String INDEXES_LOADER = "indexes";
+    final static String CRAWLS_LOADER = "crawls";
+    final static String QUERIES_LOADER = "queries";
+
+    final static int DEFAULT_FIRST = 20;
+    final static int MAX_FIRST = 100;
+
+    private final IndexServiceInterface indexService;
+    private final WebCrawlerServiceInterface webCrawlerService;
+    private final ExecutorService executorService;
+
+    GraphQLListFetchers(final IndexServiceInterface indexService,
+                        final WebCrawlerServiceInterface webCrawlerService,
+                        final ExecutorService executorService) {
+        this.indexService = indexService;
+        this.webCrawlerService = webCrawlerService;
+        this.executorService = executorService;
+    }
+
+    @Override
+    public Map<String, Map<String, DataFetcher<?>>> getDataFetchers() {
+        return Map.of("Query", Map.of(
+            "indexList", fetcher(INDEXES_LOADER, ListKey::new),
+            "crawlList", fetcher(CRAWLS_LOADER, ListKey::new),
+            "queryList", fetcher(QUERIES_LOADER, ListKey::new),
+            "indexes", fetcher(INDEXES_LOADER, ConnectionKey::new),
+            "crawls", fetcher(CRAWLS_LOADER, ConnectionKey::new),
+            "queries", fetcher(QUERIES_LOADER, ConnectionKey::new)));
+    }
+
+    @Override
+    public Map<String, BatchLoader<?, ?>> getBatchLoaders() {
+        return Map.of(
+            INDEXES_LOADER, loader(INDEXES_LOADER),
+            CRAWLS_LOADER, loader(CRAWLS_LOADER),
+            QUERIES_LOADER, loader(QUERIES_LOADER));
+    }
+
+    /**
+     * @param name the name of the list (indexes, crawls, queries)
+     * @return the sorted names
+     */
+    NavigableSet<String> getNames(final String name) {
+        switch (name) {
+            case INDEXES_LOADER:
+                return new TreeSet<>(indexService.getIndexes().keySet());
+            case CRAWLS_LOADER:
+                return new TreeSet<>(webCrawlerService.getSessions().keySet());
+            case QUERIES_LOADER:
+                // There is no query store yet
+                return new TreeSet<>();
+            default:
+                throw new IllegalArgumentException("Unknown list: " + name);
+        }
+    }
+
+    static boolean matches(final String keywords, final String name) {
+        return keywords.isEmpty() || name.toLowerCase(Locale.ROOT).contains(keywords);
+    }
+
+    static String normalizeKeywords(final String keywords) {
+        return keywords == null ? "" : keywords.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static GraphQLService.NonBlockingDataFetcher<CompletableFuture<Object>> fetcher(
+        final String loaderName, final Function<DataFetchingEnvironment, NamesKey> keyFactory) {
+        return env -> {
+            final DataLoader<NamesKey, Object> dataLoader = env.getDataLoader(loaderName);
+            return dataLoader.load(keyFactory.apply(env));
+        };
+    }
+
+    /**
+     * The names are read once for the whole batch, then filtered and paginated for each key
+     */
+    private BatchLoader<NamesKey, Object> loader(final String name) {
+        final Supplier<NavigableSet<String>> namesSupplier = () -> getNames(name);
+        return keys -> CompletableFuture.supplyAsync(() -> {
+            final NavigableSet<String> names = namesSupplier.get();
+            final List<Object> results = new ArrayList<>(keys.size());
+            for (final NamesKey key : keys)
+                results.add(key.apply(names));
+            return results;
+        }, executorService);
+    }
+
+    interface NamesKey {
+        Object apply(NavigableSet<String> names);
+    }
+
+    /**
+     * The arguments of a list field paginated by offset
+     */
+    final static class ListKey implements NamesKey {
+
+        private final String keywords;
+        private final int start;
+        private final Integer rows;
+
+        ListKey(final String keywords, final Integer start, final Integer rows) {
+            this.keywords = normalizeKeywords(keywords);
+            this.start = start == null ? 0 : Math.max(0, start);
+            this.rows = rows;
+        }
+
+        private ListKey(final DataFetchingEnvironment env) {
+            this(env.getArgument("keywords"), env.getArgument("start"), env.getArgument("rows"));
+        }
+
+        @Override
+        public List<String> apply(final NavigableSet<String> names) {
+            final List<String> result = new ArrayList<>();
+            int skip = start;
+            for (final String name : names) {
+                if (rows != null && result.size() >= rows)
+                    break;
+                if (!matches(keywords, name))
+                    continue;
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                result.add(name);
+            }
+            return result;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof ListKey))
+                return false;
+            final ListKey o = (ListKey) other;
+            return start == o.start && keywords.equals(o.keywords) && Objects.equals(rows, o.rows);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(keywords, start, rows);
+        }
+    }
+
+    /**
+     * The arguments of a connection field paginated by cursor
+     */
+    final static class ConnectionKey implements NamesKey {
+
+        private final String keywords;
+        private final int first;
+        private final String after;
+
+        ConnectionKey(final String keywords, final Integer first, final String afterCursor) {
+            this.keywords = normalizeKeywords(keywords);
+            this.first = first == null ? DEFAULT_FIRST : Math.max(0, Math.min(MAX_FIRST, first));
+            this.after = afterCursor == null ? null : decodeCursor(afterCursor);
+        }
+
+        private ConnectionKey(final DataFetchingEnvironment env) {
+            this(env.getArgument("keywords"), env.getArgument("first"), env.getArgument("after"));
+        }
+
+        @Override
+        public Connection apply(final NavigableSet<String> names) {
+            final List<Edge> edges = new ArrayList<>(first);
+            boolean hasNextPage = false;
+            for (final String name : after == null ? names : names.tailSet(after, false)) {
+                if (!matches(keywords, name))
+                    continue;
+                if (edges.size() == first) {
+                    hasNextPage = true;
+                    break;
+                }
+                edges.add(new Edge(name));
+            }
+            return new Connection(edges, hasNextPage);
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof ConnectionKey))
+                return false;
+            final ConnectionKey o = (ConnectionKey) other;
+            return first == o.first && keywords.equals(o.keywords) && Objects.equals(after, o.after);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(keywords, first, after);
+        }
+    }
+
+    static String encodeCursor(final String name) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(
+            ("n:" + name).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String decodeCursor(final String cursor) {
+        final String decoded;
+        try {
+            decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        if (!decoded.startsWith("n:"))
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        return decoded.substring(2);
+    }
+
+    public final static class Connection {
+
+        private final List<Edge> edges;
+        private final PageInfo pageInfo;
+
+        private Connection(final List<Edge> edges, final boolean hasNextPage) {
+            this.edges = edges;
+            this.pageInfo = new PageInfo(hasNextPage, edges.isEmpty() ? null : edges.get(edges.size() - 1).cursor);
+        }
+
+        public List<Edge> getEdges() {
+            return edges;
+        }
+
+        public PageInfo getPageInfo() {
+            return pageInfo;
+        }
+    }
+
+    public final static class Edge {
+
+        private final String node;
+        private final String cursor;
+
+        private Edge(final String node) {
+            this.node = node;
+            this.cursor = encodeCursor(node);
+        }
+
+        public String getNode() {
+            return node;
+        }
+
+        public String getCursor() {
+            return cursor;
+        }
+    }
+
+    public final static class PageInfo {
+
+        private final boolean hasNextPage;
+        private final String endCursor;
+
+        private PageInfo(final boolean hasNextPage, final String endCursor) {
+            this.hasNextPage = hasNextPage;
+            this.endCursor = endCursor;
+        }
+
+        public boolean getHasNextPage() {
+            return hasNextPage;
+        }
+
+        public String getEndCursor() {
+            return endCursor;
+        }
+    }
+}
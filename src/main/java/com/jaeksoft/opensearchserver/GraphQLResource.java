@@ -18,81 +18,201 @@ package com.jaeksoft.opensearchserver;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonCreator;
-import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.qwazr.utils.ObjectMappers;
 import graphql.ExecutionResult;
 import graphql.GraphQLError;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 @Path("/")
 public class GraphQLResource {
 
+    public final static String APPLICATION_SMILE = "application/x-jackson-smile";
+    public final static MediaType APPLICATION_SMILE_TYPE = MediaType.valueOf(APPLICATION_SMILE);
+    public final static String APPLICATION_NDJSON = "application/x-ndjson";
+
     private final GraphQLService graphQLService;
+    private final GraphQLListFetchers listFetchers;
 
-    public GraphQLResource(final GraphQLService graphQLService) {
+    public GraphQLResource(final GraphQLService graphQLService, final GraphQLListFetchers listFetchers) {
         this.graphQLService = graphQLService;
+        this.listFetchers = listFetchers;
+    }
+
+    /**
+     * Export a whole list (indexes, crawls, queries), sorted by name, one JSON string per line.
+     * The names are written as they are filtered, without building the response in memory.
+     */
+    @GET
+    @Path("/export/{list}")
+    @Produces(APPLICATION_NDJSON)
+    public StreamingOutput export(@PathParam("list") final String list,
+                                  @QueryParam("keywords") final String keywords) {
+        final Iterable<String> names;
+        try {
+            names = listFetchers.getNames(list);
+        } catch (IllegalArgumentException e) {
+            throw new NotFoundException(e.getMessage(), e);
+        }
+        final String normalizedKeywords = GraphQLListFetchers.normalizeKeywords(keywords);
+        return outputStream -> {
+            try (final JsonGenerator generator = ObjectMappers.JSON.getFactory().createGenerator(outputStream)) {
+                generator.setRootValueSeparator(null);
+                for (final String name : names) {
+                    if (!GraphQLListFetchers.matches(normalizedKeywords, name))
+                        continue;
+                    generator.writeString(name);
+                    generator.writeRaw('\n');
+                }
+            }
+        };
     }
 
+    /**
+     * The body is either one operation, or an array of operations executed concurrently.
+     * The response of a batch is the array of the results, in the same order.
+     * The request and the response are either JSON or SMILE, the response is written as it is serialized.
+     */
     @POST
     @Path("/")
-    @Produces(MediaType.APPLICATION_JSON)
-    public ExecutionResult query(final String query) throws JsonProcessingException {
-        final InputQuery inputQuery = ObjectMappers.JSON.readValue(query, InputQuery.class);
-        return new ExecutionResultWrapper(graphQLService.query(inputQuery.operationName, inputQuery.query, inputQuery.variables));
+    @Consumes({MediaType.APPLICATION_JSON, APPLICATION_SMILE, MediaType.WILDCARD})
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_SMILE})
+    public void query(final InputStream input,
+                      @Context final HttpHeaders headers,
+                      @Suspended final AsyncResponse asyncResponse) throws IOException {
+        // The whole body is read and validated before any operation is executed
+        final List<InputQuery> inputQueries = new ArrayList<>();
+        final boolean isBatch;
+        try (final JsonParser parser = getMapper(headers.getMediaType()).getFactory().createParser(input)) {
+            final JsonToken token = parser.nextToken();
+            isBatch = token == JsonToken.START_ARRAY;
+            if (isBatch) {
+                JsonToken next;
+                while ((next = parser.nextToken()) == JsonToken.START_OBJECT) {
+                    if (inputQueries.size() >= graphQLService.getMaxBatchSize())
+                        throw new BadRequestException(
+                            "The batch contains more than " + graphQLService.getMaxBatchSize() + " operations");
+                    inputQueries.add(parser.readValueAs(InputQuery.class));
+                }
+                if (next != JsonToken.END_ARRAY)
+                    throw new BadRequestException("The batch should be an array of operations");
+            } else if (token == JsonToken.START_OBJECT)
+                inputQueries.add(parser.readValueAs(InputQuery.class));
+            else
+                throw new BadRequestException("The body should be an operation or an array of operations");
+            if (parser.nextToken() != null)
+                throw new BadRequestException("Unexpected content after the operations");
+        } catch (JsonProcessingException e) {
+            throw new BadRequestException("The body is not valid: " + e.getOriginalMessage(), e);
+        }
+        final List<CompletableFuture<ExecutionResult>> results = new ArrayList<>(inputQueries.size());
+        for (final InputQuery inputQuery : inputQueries)
+            results.add(execute(inputQuery));
+        final CompletableFuture<Void> result = CompletableFuture.allOf(results.toArray(new CompletableFuture[0]));
+        // The HTTP worker thread is released, the response is resumed by the thread completing the execution.
+        // The cancellation only releases the response: the fetchers are stopped by the deadline of the execution.
+        asyncResponse.setTimeoutHandler(response -> {
+            result.cancel(true);
+            response.resume(new ServiceUnavailableException(
+                "The query took more than " + graphQLService.getTimeoutMs() + " ms"));
+        });
+        asyncResponse.setTimeout(graphQLService.getTimeoutMs(), TimeUnit.MILLISECONDS);
+        final MediaType mediaType = getResponseType(headers.getAcceptableMediaTypes());
+        final ObjectMapper mapper = getMapper(mediaType);
+        result.whenComplete((done, error) -> {
+            if (error != null) {
+                asyncResponse.resume(error instanceof CompletionException && error.getCause() != null ?
+                    error.getCause() : error);
+                return;
+            }
+            final StreamingOutput output = outputStream -> {
+                try (final JsonGenerator generator = mapper.getFactory().createGenerator(outputStream)) {
+                    if (isBatch)
+                        generator.writeStartArray();
+                    for (final CompletableFuture<ExecutionResult> executionResult : results)
+                        writeResult(generator, executionResult.join());
+                    if (isBatch)
+                        generator.writeEndArray();
+                }
+            };
+            asyncResponse.resume(Response.ok(output, mediaType).build());
+        });
     }
 
-    @JsonInclude(JsonInclude.Include.NON_EMPTY)
-    @JsonAutoDetect(
-        setterVisibility = JsonAutoDetect.Visibility.NONE,
-        getterVisibility = JsonAutoDetect.Visibility.NONE,
-        isGetterVisibility = JsonAutoDetect.Visibility.NONE,
-        creatorVisibility = JsonAutoDetect.Visibility.NONE,
-        fieldVisibility = JsonAutoDetect.Visibility.NONE)
-    public static class ExecutionResultWrapper implements ExecutionResult {
-
-        private final ExecutionResult result;
-
-        private ExecutionResultWrapper(final ExecutionResult result) {
-            this.result = result;
-        }
+    private CompletableFuture<ExecutionResult> execute(final InputQuery inputQuery) {
+        return graphQLService.queryAsync(
+            inputQuery.operationName, inputQuery.query, inputQuery.variables, inputQuery.extensions);
+    }
 
-        @Override
-        @JsonProperty
-        public List<GraphQLError> getErrors() {
-            return result.getErrors();
-        }
+    private static ObjectMapper getMapper(final MediaType mediaType) {
+        return mediaType != null && mediaType.isCompatible(APPLICATION_SMILE_TYPE) ?
+            ObjectMappers.SMILE : ObjectMappers.JSON;
+    }
 
-        @Override
-        @JsonProperty
-        public <T> T getData() {
-            return result.getData();
+    private static MediaType getResponseType(final List<MediaType> acceptableMediaTypes) {
+        for (final MediaType mediaType : acceptableMediaTypes) {
+            if (mediaType.isWildcardType())
+                break;
+            if (mediaType.isCompatible(APPLICATION_SMILE_TYPE))
+                return APPLICATION_SMILE_TYPE;
+            if (mediaType.isCompatible(MediaType.APPLICATION_JSON_TYPE))
+                break;
         }
+        return MediaType.APPLICATION_JSON_TYPE;
+    }
 
-        @Override
-        @JsonIgnore
-        public boolean isDataPresent() {
-            return result.isDataPresent();
+    /**
+     * Write a result following the GraphQL specification: errors, data, extensions
+     */
+    static void writeResult(final JsonGenerator generator, final ExecutionResult result) throws IOException {
+        generator.writeStartObject();
+        final List<GraphQLError> errors = result.getErrors();
+        if (errors != null && !errors.isEmpty()) {
+            generator.writeArrayFieldStart("errors");
+            for (final GraphQLError error : errors)
+                generator.writeObject(error.toSpecification());
+            generator.writeEndArray();
         }
-
-        @Override
-        @JsonProperty
-        public Map<Object, Object> getExtensions() {
-            return result.getExtensions();
+        if (result.isDataPresent()) {
+            generator.writeFieldName("data");
+            generator.writeObject(result.getData());
         }
-
-        @Override
-        @JsonIgnore
-        public Map<String, Object> toSpecification() {
-            return result.toSpecification();
+        final Map<Object, Object> extensions = result.getExtensions();
+        if (extensions != null && !extensions.isEmpty()) {
+            generator.writeFieldName("extensions");
+            generator.writeObject(extensions);
         }
+        generator.writeEndObject();
     }
 
     @JsonInclude(JsonInclude.Include.NON_EMPTY)
@@ -110,13 +230,17 @@ public class GraphQLResource {
 
         private final Map<String, Object> variables;
 
+        private final Map<String, Object> extensions;
+
         @JsonCreator
         private InputQuery(@JsonProperty("query") String query,
                            @JsonProperty("operationName") String operationName,
-                           @JsonProperty("variables") Map<String, Object> variables) {
+                           @JsonProperty("variables") Map<String, Object> variables,
+                           @JsonProperty("extensions") Map<String, Object> extensions) {
             this.query = query;
             this.operationName = operationName;
             this.variables = variables;
+            this.extensions = extensions;
         }
     }
 }
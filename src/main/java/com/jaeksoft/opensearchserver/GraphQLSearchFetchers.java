@@ -0,0 +1,289 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.qwazr.search.index.IndexServiceInterface;
+import com.qwazr.search.index.IndexStatus;
+import com.qwazr.search.index.QueryDefinition;
+import com.qwazr.search.index.ResultDefinition;
+import com.qwazr.search.index.ResultDocumentMap;
+import com.qwazr.search.query.QueryParser;
+import graphql.schema.DataFetcher;
+import graphql.schema.DataFetchingEnvironment;
+import graphql.schema.SelectedField;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * The resolver of the search field.
+ * <p>
+ * Only the stored fields selected by the operation (documents.field and documents.values) are returned by the index.
+ * The results are cached, the key contains the version of the index:
+ * a commit changes the version, and the previous entries are not used anymore.
+ * Reading the version builds the status of the index, so the version of an index is only read again
+ * after a write made by this server (see {@link #invalidate(String)}),
+ * or once it is older than the version TTL for the writes which bypass this server.
+ */
+class GraphQLSearchFetchers implements GraphQLService.DataFetcherProvider {
+
+    final static String DEFAULT_FIELD = "content";
+    final static int DEFAULT_ROWS = 10;
+
+    private final Function<String, Long> versionLookup;
+    private final BiFunction<String, QueryDefinition, SearchResult> searcher;
+    private final long versionTtlNanos;
+    private final ConcurrentHashMap<String, IndexVersion> versions;
+    private final LruCache<SearchKey, SearchResult> cache;
+    private final LongAdder cacheHits;
+    private final LongAdder cacheMisses;
+
+    GraphQLSearchFetchers(final IndexServiceInterface indexService, final int cacheSize, final long versionTtlMs) {
+        this(index -> {
+                final IndexStatus status = indexService.getIndex(index);
+                return status == null ? null : status.version;
+            },
+            (index, queryDefinition) -> new SearchResult(indexService.searchQuery(index, queryDefinition, false)),
+            cacheSize, versionTtlMs);
+    }
+
+    GraphQLSearchFetchers(final Function<String, Long> versionLookup,
+                          final BiFunction<String, QueryDefinition, SearchResult> searcher,
+                          final int cacheSize,
+                          final long versionTtlMs) {
+        this.versionLookup = versionLookup;
+        this.searcher = searcher;
+        this.versionTtlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, versionTtlMs));
+        this.versions = new ConcurrentHashMap<>();
+        this.cache = new LruCache<>(cacheSize);
+        this.cacheHits = new LongAdder();
+        this.cacheMisses = new LongAdder();
+    }
+
+    @Override
+    public Map<String, Map<String, DataFetcher<?>>> getDataFetchers() {
+        return Map.of(
+            "Query", Map.of("search", this::search),
+            "SearchDocument", Map.of(
+                "field", GraphQLSearchFetchers::field,
+                "values", GraphQLSearchFetchers::values));
+    }
+
+    private SearchResult search(final DataFetchingEnvironment env) {
+        return search(env.getArgument("index"),
+            env.getArgument("query"),
+            env.getArgument("defaultField"),
+            env.getArgument("start"),
+            env.getArgument("rows"),
+            getSelectedFields(env));
+    }
+
+    SearchResult search(final String index,
+                        final String query,
+                        final String defaultField,
+                        final Integer start,
+                        final Integer rows,
+                        final Collection<String> returnedFields) {
+        final SearchKey key = new SearchKey(index, getIndexVersion(index),
+            query, defaultField, start, rows, returnedFields);
+        final SearchResult cached = cache.get(key);
+        if (cached != null) {
+            cacheHits.increment();
+            return cached;
+        }
+        cacheMisses.increment();
+        final QueryDefinition queryDefinition = QueryDefinition.of(
+            QueryParser.of(key.defaultField).setQueryString(key.query).build())
+            .start(key.start)
+            .rows(key.rows)
+            .returnedField(key.returnedFields.toArray(new String[0]))
+            .build();
+        final SearchResult result = searcher.apply(index, queryDefinition);
+        if (key.version != null)
+            cache.put(key, result);
+        return result;
+    }
+
+    /**
+     * @return the version of the index, which changes on every commit, or null if it is not known
+     */
+    private Long getIndexVersion(final String index) {
+        final long now = System.nanoTime();
+        final IndexVersion known = versions.get(index);
+        if (known != null && now - known.readNanoTime < versionTtlNanos)
+            return known.version;
+        final Long version = versionLookup.apply(index);
+        versions.put(index, new IndexVersion(version, now));
+        return version;
+    }
+
+    /**
+     * Forget the version of the index: the next search reads it again.
+     * Called by the write paths of this server: crawl buffers, replayed spool segments and REST writes.
+     *
+     * @param index the name of the index
+     */
+    void invalidate(final String index) {
+        versions.remove(index);
+    }
+
+    /**
+     * @return the name of the stored fields requested by the selection
+     */
+    private static Collection<String> getSelectedFields(final DataFetchingEnvironment env) {
+        final TreeSet<String> fields = new TreeSet<>();
+        for (final SelectedField selectedField : env.getSelectionSet().getFields("documents/{field,values}")) {
+            final Object name = selectedField.getArguments().get("name");
+            if (name != null)
+                fields.add(name.toString());
+        }
+        return fields;
+    }
+
+    private static String field(final DataFetchingEnvironment env) {
+        final List<String> values = values(env);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private static List<String> values(final DataFetchingEnvironment env) {
+        final SearchDocument document = env.getSource();
+        final Object value = document.fields.get(env.<String>getArgument("name"));
+        if (value == null)
+            return null;
+        if (value instanceof Collection)
+            return ((Collection<?>) value).stream().map(Object::toString).collect(Collectors.toList());
+        return List.of(value.toString());
+    }
+
+    long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    private final static class IndexVersion {
+
+        private final Long version;
+        private final long readNanoTime;
+
+        private IndexVersion(final Long version, final long readNanoTime) {
+            this.version = version;
+            this.readNanoTime = readNanoTime;
+        }
+    }
+
+    /**
+     * The normalized query: the whitespaces are collapsed, and the returned fields are sorted
+     */
+    private final static class SearchKey {
+
+        private final String index;
+        private final Long version;
+        private final String query;
+        private final String defaultField;
+        private final int start;
+        private final int rows;
+        private final Collection<String> returnedFields;
+
+        private SearchKey(final String index,
+                          final Long version,
+                          final String query,
+                          final String defaultField,
+                          final Integer start,
+                          final Integer rows,
+                          final Collection<String> returnedFields) {
+            this.index = index;
+            this.version = version;
+            this.query = query.trim().replaceAll("\\s+", " ");
+            this.defaultField = defaultField == null ? DEFAULT_FIELD : defaultField;
+            this.start = start == null ? 0 : Math.max(0, start);
+            this.rows = rows == null ? DEFAULT_ROWS : Math.max(0, rows);
+            this.returnedFields = returnedFields;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof SearchKey))
+                return false;
+            final SearchKey o = (SearchKey) other;
+            return start == o.start && rows == o.rows && index.equals(o.index) && Objects.equals(version, o.version)
+                && query.equals(o.query) && defaultField.equals(o.defaultField)
+                && returnedFields.equals(o.returnedFields);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(index, version, query, defaultField, start, rows, returnedFields);
+        }
+    }
+
+    public final static class SearchResult {
+
+        private final long totalHits;
+        private final List<SearchDocument> documents;
+
+        SearchResult(final long totalHits, final List<SearchDocument> documents) {
+            this.totalHits = totalHits;
+            this.documents = documents;
+        }
+
+        private SearchResult(final ResultDefinition.WithMap result) {
+            totalHits = result.getTotalHits();
+            final List<ResultDocumentMap> resultDocuments = result.getDocuments();
+            if (resultDocuments == null || resultDocuments.isEmpty())
+                documents = Collections.emptyList();
+            else {
+                documents = new ArrayList<>(resultDocuments.size());
+                resultDocuments.forEach(document -> documents.add(new SearchDocument(document)));
+            }
+        }
+
+        public long getTotalHits() {
+            return totalHits;
+        }
+
+        public List<SearchDocument> getDocuments() {
+            return documents;
+        }
+    }
+
+    public final static class SearchDocument {
+
+        private final Float score;
+        private final Map<String, Object> fields;
+
+        private SearchDocument(final ResultDocumentMap document) {
+            score = document.getScore();
+            fields = document.getFields() == null ? Collections.emptyMap() : document.getFields();
+        }
+
+        public Float getScore() {
+            return score;
+        }
+    }
+}
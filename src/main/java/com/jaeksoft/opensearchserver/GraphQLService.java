@@ -19,7 +19,18 @@ package com.jaeksoft.opensearchserver;
 import com.qwazr.utils.IOUtils;
 import graphql.ExecutionInput;
 import graphql.ExecutionResult;
+import graphql.ExecutionResultImpl;
 import graphql.GraphQL;
+import graphql.GraphQLContext;
+import graphql.GraphqlErrorBuilder;
+import graphql.Scalars;
+import graphql.analysis.FieldComplexityEnvironment;
+import graphql.analysis.MaxQueryComplexityInstrumentation;
+import graphql.analysis.MaxQueryDepthInstrumentation;
+import graphql.execution.AsyncDataFetcher;
+import graphql.execution.instrumentation.ChainedInstrumentation;
+import graphql.execution.preparsed.PreparsedDocumentEntry;
+import graphql.execution.preparsed.PreparsedDocumentProvider;
 import graphql.schema.DataFetcher;
 import graphql.schema.GraphQLSchema;
 import graphql.schema.idl.RuntimeWiring;
@@ -29,14 +40,43 @@ import graphql.schema.idl.TypeDefinitionRegistry;
 import graphql.schema.idl.TypeRuntimeWiring;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+import org.dataloader.BatchLoader;
+import org.dataloader.DataLoader;
+import org.dataloader.DataLoaderRegistry;
 
 public class GraphQLService {
 
     private final GraphQL graphQL;
+    private final DocumentCache documentCache;
+    private final LruCache<String, String> persistedQueries;
+    private final long timeoutMs;
+    private final int maxBatchSize;
+    private final Map<String, BatchLoader<?, ?>> batchLoaders;
+    private final GraphQLFieldTimingInstrumentation fieldTiming;
+    private final ServerMetrics metrics;
 
-    public GraphQLService(final DataFetcherProvider... dataFetcherProviders) throws IOException {
+    /**
+     * @param configService        the configuration
+     * @param executorService      the executor running the data fetchers, out of the HTTP worker threads
+     * @param metrics              the metrics of the server
+     * @param dataFetcherProviders the providers of the data fetchers
+     * @throws IOException if the schema cannot be read
+     */
+    public GraphQLService(final ConfigService configService,
+                          final ExecutorService executorService,
+                          final ServerMetrics metrics,
+                          final DataFetcherProvider... dataFetcherProviders) throws IOException {
+        this.metrics = metrics;
 
         // Read the schema from resources
         final String schema = IOUtils.resourceToString(
@@ -48,37 +88,240 @@ public class GraphQLService {
 
         // Group together the fetchers by types
         final Map<String, Map<String, DataFetcher<?>>> dataFetcherMap = new HashMap<>();
+        batchLoaders = new LinkedHashMap<>();
         for (DataFetcherProvider dataFetcherProvider : dataFetcherProviders) {
             dataFetcherProvider.getDataFetchers().forEach(
                 (type, dataFetchers) -> dataFetcherMap.computeIfAbsent(
                     type, t -> new HashMap<>()).putAll(dataFetchers));
+            if (dataFetcherProvider instanceof DataLoaderProvider)
+                batchLoaders.putAll(((DataLoaderProvider) dataFetcherProvider).getBatchLoaders());
         }
 
         // Build the graphql wiring
         final RuntimeWiring.Builder runtimeWiring = RuntimeWiring.newRuntimeWiring();
+        // The hit counts do not fit in an Int
+        runtimeWiring.scalar(Scalars.GraphQLLong);
         dataFetcherMap.forEach((type, dataFetchers) -> {
             final TypeRuntimeWiring.Builder typeWiring = TypeRuntimeWiring.newTypeWiring(type);
-            dataFetchers.forEach(typeWiring::dataFetcher);
+            // The deadline is checked when the blocking fetchers start on the executor, not when they are queued
+            dataFetchers.forEach((field, dataFetcher) -> typeWiring.dataFetcher(field,
+                dataFetcher instanceof AsyncDataFetcher || dataFetcher instanceof NonBlockingDataFetcher ?
+                    GraphQLDeadline.checked(dataFetcher) :
+                    AsyncDataFetcher.async(GraphQLDeadline.checked(dataFetcher), executorService)));
             runtimeWiring.type(typeWiring);
         });
 
         final SchemaGenerator schemaGenerator = new SchemaGenerator();
         final GraphQLSchema graphQLSchema = schemaGenerator.makeExecutableSchema(
             typeDefinitionRegistry, runtimeWiring.build());
-        graphQL = GraphQL.newGraphQL(graphQLSchema).build();
+        documentCache = new DocumentCache(configService.getGraphQLDocumentCacheSize());
+        persistedQueries = new LruCache<>(configService.getGraphQLPersistedQueryCacheSize());
+        timeoutMs = configService.getGraphQLTimeoutMs();
+        maxBatchSize = configService.getGraphQLMaxBatchSize();
+        fieldTiming = new GraphQLFieldTimingInstrumentation();
+        // The operations exceeding the depth or the complexity are rejected before the execution
+        graphQL = GraphQL.newGraphQL(graphQLSchema)
+            .preparsedDocumentProvider(documentCache)
+            .instrumentation(new ChainedInstrumentation(List.of(
+                new MaxQueryDepthInstrumentation(configService.getGraphQLMaxDepth()),
+                new MaxQueryComplexityInstrumentation(configService.getGraphQLMaxComplexity(),
+                    GraphQLService::fieldComplexity),
+                fieldTiming)))
+            .build();
     }
 
+    /**
+     * @return the maximum duration of a request in milliseconds
+     */
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    /**
+     * @return the maximum number of operations of a batched request
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * The complexity of a field is one, plus the complexity of its selection multiplied
+     * by the number of requested items ("rows" or "first" argument)
+     */
+    private static int fieldComplexity(final FieldComplexityEnvironment environment, final int childComplexity) {
+        if (childComplexity == 0)
+            return 1;
+        Object items = environment.getArguments().get("rows");
+        if (items == null)
+            items = environment.getArguments().get("first");
+        final long count = items instanceof Number ? Math.max(1, ((Number) items).longValue()) : 1;
+        return (int) Math.min(Integer.MAX_VALUE, 1 + childComplexity * count);
+    }
+
+    /**
+     * @return the durations of a sample of the data fetches by field (Type.field), since the start of the server
+     */
+    public Map<String, LatencyHistogram> getFieldHistograms() {
+        return fieldTiming.getFieldHistograms();
+    }
 
     public ExecutionResult query(String operationName, String query, Map<String, Object> variables) {
+        return queryAsync(operationName, query, variables, null).join();
+    }
+
+    /**
+     * Execute a query. The persisted queries follow the Apollo protocol:
+     * the client sends the SHA-256 of the query in the "persistedQuery" extension,
+     * and sends the full text only when the server answers PersistedQueryNotFound.
+     * The "fieldTiming" extension set to true returns the p50/p99 duration of every field.
+     *
+     * @param operationName the optional name of the operation
+     * @param query         the text of the query, may be null if a persisted query is requested
+     * @param variables     the optional variables
+     * @param extensions    the optional extensions
+     * @return the future result of the execution, completed once every data fetcher is done
+     */
+    public CompletableFuture<ExecutionResult> queryAsync(final String operationName,
+                                                         String query,
+                                                         final Map<String, Object> variables,
+                                                         final Map<String, Object> extensions) {
+        final Object persistedQuery = extensions == null ? null : extensions.get("persistedQuery");
+        if (persistedQuery instanceof Map) {
+            final Object hash = ((Map<?, ?>) persistedQuery).get("sha256Hash");
+            if (!(hash instanceof String))
+                return CompletableFuture.completedFuture(
+                    error("PersistedQueryInvalid", "The sha256Hash is missing"));
+            if (query == null || query.isBlank()) {
+                query = persistedQueries.get((String) hash);
+                if (query == null)
+                    return CompletableFuture.completedFuture(
+                        error("PersistedQueryNotFound", "PersistedQueryNotFound"));
+            } else {
+                if (!hash.equals(sha256(query)))
+                    return CompletableFuture.completedFuture(
+                        error("PersistedQueryInvalid", "The sha256Hash does not match the query"));
+                persistedQueries.put((String) hash, query);
+            }
+        }
         final ExecutionInput.Builder builder = ExecutionInput.newExecutionInput(query);
         if (operationName != null)
             builder.operationName(operationName);
         if (variables != null)
             builder.variables(variables);
-        return graphQL.execute(builder.build());
+        final GraphQLContext.Builder context = GraphQLDeadline.start(GraphQLContext.newContext(), timeoutMs);
+        if (extensions != null && Boolean.TRUE.equals(extensions.get(GraphQLFieldTimingInstrumentation.FIELD_TIMING)))
+            context.of(GraphQLFieldTimingInstrumentation.FIELD_TIMING, true);
+        builder.context(context);
+        final long start = System.nanoTime();
+        return execute(builder).whenComplete((result, error) -> {
+            metrics.graphqlQueryTime.record(System.nanoTime() - start);
+            if (error != null || !result.getErrors().isEmpty())
+                metrics.graphqlErrors.increment();
+        });
+    }
+
+    private CompletableFuture<ExecutionResult> execute(final ExecutionInput.Builder builder) {
+        if (batchLoaders.isEmpty())
+            return graphQL.executeAsync(builder.build());
+        // The data loaders are created for each request, the cache of the loaded values lives with the request
+        final BatchSizes batchSizes = new BatchSizes();
+        final DataLoaderRegistry registry = new DataLoaderRegistry();
+        batchLoaders.forEach(
+            (name, batchLoader) -> registry.register(name, newDataLoader(name, batchLoader, batchSizes)));
+        builder.dataLoaderRegistry(registry);
+        return graphQL.executeAsync(builder.build()).thenApply(result -> batchSizes.isEmpty() ?
+            result :
+            ExecutionResultImpl.newExecutionResult().from(result)
+                .addExtension("dataLoaderBatchSizes", batchSizes.get())
+                .build());
+    }
+
+    private static <K, V> DataLoader<K, V> newDataLoader(final String name,
+                                                         final BatchLoader<K, V> batchLoader,
+                                                         final BatchSizes batchSizes) {
+        return DataLoader.newDataLoader(keys -> {
+            batchSizes.add(name, keys.size());
+            return batchLoader.load(keys);
+        });
+    }
+
+    private static ExecutionResult error(final String code, final String message) {
+        return ExecutionResultImpl.newExecutionResult()
+            .addError(GraphqlErrorBuilder.newError()
+                .message(message)
+                .extensions(Map.of("code", code))
+                .build())
+            .build();
+    }
+
+    private static String sha256(final String query) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder sb = new StringBuilder(64);
+        for (final byte b : digest.digest(query.getBytes(StandardCharsets.UTF_8)))
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+    /**
+     * Keep the parsed and validated documents, the key is the operation name and the text of the query
+     */
+    private final static class DocumentCache implements PreparsedDocumentProvider {
+
+        private final LruCache<String, PreparsedDocumentEntry> cache;
+
+        private DocumentCache(final int maxSize) {
+            cache = new LruCache<>(maxSize);
+        }
+
+        @Override
+        public PreparsedDocumentEntry getDocument(
+            final ExecutionInput executionInput,
+            final Function<ExecutionInput, PreparsedDocumentEntry> parseAndValidateFunction) {
+            final String key = executionInput.getOperationName() + '\n' + executionInput.getQuery();
+            return cache.computeIfAbsent(key, k -> parseAndValidateFunction.apply(executionInput));
+        }
+    }
+
+    /**
+     * The size of every batch dispatched by the data loaders of one request
+     */
+    private final static class BatchSizes {
+
+        private final Map<String, List<Integer>> sizes = new LinkedHashMap<>();
+
+        synchronized void add(final String name, final int size) {
+            sizes.computeIfAbsent(name, n -> new ArrayList<>()).add(size);
+        }
+
+        synchronized boolean isEmpty() {
+            return sizes.isEmpty();
+        }
+
+        synchronized Map<String, List<Integer>> get() {
+            return new LinkedHashMap<>(sizes);
+        }
     }
 
     public interface DataFetcherProvider {
         Map<String, Map<String, DataFetcher<?>>> getDataFetchers();
     }
+
+    /**
+     * A provider of batch loaders, registered under their name in the DataLoaderRegistry of every request
+     */
+    public interface DataLoaderProvider {
+        Map<String, BatchLoader<?, ?>> getBatchLoaders();
+    }
+
+    /**
+     * A data fetcher returning a CompletableFuture without blocking, it is not moved to the executor.
+     * The data fetchers using a DataLoader must be non-blocking to let the loads be dispatched together.
+     */
+    public interface NonBlockingDataFetcher<T> extends DataFetcher<T> {
+    }
 }
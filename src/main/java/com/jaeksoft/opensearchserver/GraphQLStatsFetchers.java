@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import graphql.schema.DataFetcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The resolver of the stats field: the same metrics as the Prometheus endpoint.
+ * A summary is returned as three metrics: [name]_p50, [name]_p99 (in seconds) and [name]_count.
+ */
+class GraphQLStatsFetchers implements GraphQLService.DataFetcherProvider {
+
+    private final static double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final Consumer<ServerMetrics.Sink> metricsCollector;
+
+    GraphQLStatsFetchers(final Consumer<ServerMetrics.Sink> metricsCollector) {
+        this.metricsCollector = metricsCollector;
+    }
+
+    @Override
+    public Map<String, Map<String, DataFetcher<?>>> getDataFetchers() {
+        return Map.of("Query", Map.of("stats", env -> {
+            final StatsCollector collector = new StatsCollector();
+            metricsCollector.accept(collector);
+            return collector.metrics;
+        }));
+    }
+
+    private final static class StatsCollector implements ServerMetrics.Sink {
+
+        private final List<Map<String, Object>> metrics = new ArrayList<>();
+
+        private void add(final String name, final double value, final String... labels) {
+            final List<Map<String, String>> labelList = new ArrayList<>(labels.length / 2);
+            for (int i = 0; i + 1 < labels.length; i += 2)
+                labelList.add(Map.of("name", labels[i], "value", labels[i + 1]));
+            metrics.add(Map.of("name", name, "labels", labelList, "value", value));
+        }
+
+        @Override
+        public void counter(final String name, final String help, final double value, final String... labels) {
+            add(name, value, labels);
+        }
+
+        @Override
+        public void gauge(final String name, final String help, final double value, final String... labels) {
+            add(name, value, labels);
+        }
+
+        @Override
+        public void summary(final String name,
+                            final String help,
+                            final LatencyHistogram histogram,
+                            final String... labels) {
+            add(name + "_p50", histogram.getQuantile(0.5) / NANOS_PER_SECOND, labels);
+            add(name + "_p99", histogram.getQuantile(0.99) / NANOS_PER_SECOND, labels);
+            add(name + "_count", histogram.getCount(), labels);
+        }
+    }
+}
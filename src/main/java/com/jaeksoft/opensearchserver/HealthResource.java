@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.qwazr.utils.ObjectMappers;
+import javax.ws.rs.GET;
+import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * The liveness of the server and the report of the warm-up.
+ * <p>
+ * The web application is built with the components it serves, so the listener only starts once the warm-up
+ * has created them: in practice the server is ready as soon as it answers,
+ * and the report gives the creation duration of every component.
+ */
+@Path("/")
+public class HealthResource {
+
+    private final WarmUp warmUp;
+
+    public HealthResource(final WarmUp warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    /**
+     * @return the status of the warm-up, with 200 if every component has been created,
+     * 503 if a warm-up task failed
+     */
+    @GET
+    @Path("/")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response ready() {
+        final WarmUp.Status status = warmUp.getStatus();
+        try {
+            return Response.status(status.ready ? Response.Status.OK : Response.Status.SERVICE_UNAVAILABLE)
+                .entity(ObjectMappers.JSON.writeValueAsString(status))
+                .type(MediaType.APPLICATION_JSON_TYPE)
+                .build();
+        } catch (JsonProcessingException e) {
+            throw new InternalServerErrorException("Cannot write the status", e);
+        }
+    }
+
+    /**
+     * @return 200 as soon as the server answers
+     */
+    @GET
+    @Path("/live")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String live() {
+        return "OK";
+    }
+}
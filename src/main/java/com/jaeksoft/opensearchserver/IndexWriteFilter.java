@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.qwazr.search.index.IndexServiceInterface;
+import java.util.List;
+import java.util.Set;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.PathSegment;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Notify the successful write requests of the REST index service: /indexes/{index_name}/...
+ */
+@Provider
+public class IndexWriteFilter implements ContainerResponseFilter {
+
+    private final static Set<String> READ_METHODS = Set.of(HttpMethod.GET, HttpMethod.HEAD, HttpMethod.OPTIONS);
+
+    private final IndexWriteListener listener;
+
+    public IndexWriteFilter(final IndexWriteListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void filter(final ContainerRequestContext request, final ContainerResponseContext response) {
+        if (READ_METHODS.contains(request.getMethod())
+            || response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL)
+            return;
+        final List<PathSegment> segments = request.getUriInfo().getPathSegments();
+        if (segments.size() >= 2 && IndexServiceInterface.PATH.equals(segments.get(0).getPath()))
+            listener.indexWritten(segments.get(1).getPath());
+    }
+}
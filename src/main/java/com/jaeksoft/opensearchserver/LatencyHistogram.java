@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Histogram of durations in nanoseconds, with a relative error below 25%.
+ * <p>
+ * Each power of two is split in four buckets. Recording a value does not allocate,
+ * it increments a bucket counter, the count and the sum.
+ */
+@ThreadSafe
+public class LatencyHistogram {
+
+    private final static int SUB_BUCKETS = 4;
+    private final static int BUCKETS = Long.SIZE * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets;
+    private final LongAdder count;
+    private final LongAdder sum;
+
+    public LatencyHistogram() {
+        buckets = new AtomicLongArray(BUCKETS);
+        count = new LongAdder();
+        sum = new LongAdder();
+    }
+
+    static int bucketIndex(final long value) {
+        if (value < SUB_BUCKETS)
+            return (int) Math.max(0, value);
+        final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return exponent * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the highest value of the bucket
+     */
+    static long bucketUpperBound(final int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        final int exponent = index / SUB_BUCKETS;
+        final int subBucket = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - 2)) - 1;
+    }
+
+    public void record(final long nanos) {
+        buckets.incrementAndGet(bucketIndex(nanos));
+        count.increment();
+        sum.add(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @param quantile a value between 0 and 1
+     * @return the estimated value of the quantile, 0 if nothing has been recorded
+     */
+    public long getQuantile(final double quantile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += buckets.get(i);
+        if (total == 0)
+            return 0;
+        final long rank = Math.max(1, (long) Math.ceil(total * quantile));
+        long cumulated = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulated += buckets.get(i);
+            if (cumulated >= rank)
+                return bucketUpperBound(i);
+        }
+        return bucketUpperBound(BUCKETS - 1);
+    }
+}
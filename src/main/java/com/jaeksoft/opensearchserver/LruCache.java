@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A synchronized LRU map bounded by its number of entries
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+@ThreadSafe
+final class LruCache<K, V> {
+
+    private final LinkedHashMap<K, V> map;
+
+    LruCache(final int maxSize) {
+        map = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    synchronized V get(final K key) {
+        return map.get(key);
+    }
+
+    synchronized void put(final K key, final V value) {
+        map.put(key, value);
+    }
+
+    synchronized void clear() {
+        map.clear();
+    }
+
+    synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * The value is computed outside of the lock, concurrent callers may compute the same value.
+     */
+    V computeIfAbsent(final K key, final Function<K, V> function) {
+        final V value = get(key);
+        if (value != null)
+            return value;
+        final V newValue = function.apply(key);
+        if (newValue != null)
+            put(key, newValue);
+        return newValue;
+    }
+}
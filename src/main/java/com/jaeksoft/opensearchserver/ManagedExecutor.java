@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.qwazr.utils.LoggerUtils;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * The executor of a subsystem (index, crawler, extraction, graphql).
+ * <p>
+ * It is either a bounded thread pool with a bounded queue,
+ * or, when requested and supported by the JDK, a virtual thread per task for I/O-bound work.
+ * A task submitted when the queue is full is either run by the submitting thread (backpressure), or rejected.
+ * With a queue size of 0, a task is only accepted if a thread is free.
+ */
+@ThreadSafe
+public class ManagedExecutor {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(ManagedExecutor.class);
+
+    private final static Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method method;
+        try {
+            method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            method = null;
+        }
+        NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = method;
+    }
+
+    private final String name;
+    private final ThreadPoolExecutor threadPool;
+    private final VirtualExecutor virtualExecutor;
+
+    ManagedExecutor(final String name, final ConfigService.ExecutorConfig config) {
+        this.name = name;
+        final ExecutorService virtual = config.virtual ? newVirtualThreadPerTaskExecutor() : null;
+        if (virtual != null) {
+            virtualExecutor = new VirtualExecutor(virtual);
+            threadPool = null;
+        } else {
+            final AtomicInteger threadCount = new AtomicInteger();
+            final BlockingQueue<Runnable> queue = config.queue == Integer.MAX_VALUE ?
+                new LinkedBlockingQueue<>() :
+                config.queue == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(config.queue);
+            threadPool = new ThreadPoolExecutor(config.threads, config.threads, 1, TimeUnit.MINUTES, queue,
+                runnable -> new Thread(runnable, name + '-' + threadCount.incrementAndGet()),
+                config.callerRunsWhenFull ?
+                    new ThreadPoolExecutor.CallerRunsPolicy() :
+                    new ThreadPoolExecutor.AbortPolicy());
+            threadPool.allowCoreThreadTimeOut(true);
+            virtualExecutor = null;
+        }
+    }
+
+    private ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR == null) {
+            LOGGER.warning(() -> "Virtual threads are not supported by this JDK, using a thread pool for " + name);
+            return null;
+        }
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.warning(() -> "Cannot create the virtual thread executor for " + name + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ExecutorService getExecutorService() {
+        return threadPool != null ? threadPool : virtualExecutor;
+    }
+
+    public boolean isVirtual() {
+        return virtualExecutor != null;
+    }
+
+    public int getActiveCount() {
+        return threadPool != null ? threadPool.getActiveCount() : virtualExecutor.active.get();
+    }
+
+    public int getPoolSize() {
+        return threadPool != null ? threadPool.getPoolSize() : virtualExecutor.active.get();
+    }
+
+    public int getQueueSize() {
+        return threadPool != null ? threadPool.getQueue().size() : 0;
+    }
+
+    public long getCompletedTaskCount() {
+        return threadPool != null ? threadPool.getCompletedTaskCount() : virtualExecutor.completed.sum();
+    }
+
+    public Status getStatus() {
+        return new Status(this);
+    }
+
+    void shutdown() {
+        getExecutorService().shutdown();
+    }
+
+    void awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        getExecutorService().awaitTermination(timeout, unit);
+    }
+
+    void shutdownNow() {
+        getExecutorService().shutdownNow();
+    }
+
+    /**
+     * Count the running tasks of the virtual thread executor
+     */
+    private static class VirtualExecutor extends AbstractExecutorService {
+
+        private final ExecutorService executorService;
+        private final AtomicInteger active;
+        private final LongAdder completed;
+
+        private VirtualExecutor(final ExecutorService executorService) {
+            this.executorService = executorService;
+            this.active = new AtomicInteger();
+            this.completed = new LongAdder();
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            executorService.execute(() -> {
+                active.incrementAndGet();
+                try {
+                    command.run();
+                } finally {
+                    active.decrementAndGet();
+                    completed.increment();
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            executorService.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return executorService.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return executorService.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return executorService.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+            return executorService.awaitTermination(timeout, unit);
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @JsonAutoDetect(setterVisibility = JsonAutoDetect.Visibility.NONE,
+        getterVisibility = JsonAutoDetect.Visibility.NONE,
+        creatorVisibility = JsonAutoDetect.Visibility.NONE,
+        isGetterVisibility = JsonAutoDetect.Visibility.NONE,
+        fieldVisibility = JsonAutoDetect.Visibility.PUBLIC_ONLY)
+    public static class Status {
+
+        public final String name;
+        public final boolean virtual;
+        public final int poolSize;
+        public final int activeCount;
+        public final int queueSize;
+        public final long completedTaskCount;
+
+        private Status(final ManagedExecutor executor) {
+            name = executor.name;
+            virtual = executor.isVirtual();
+            poolSize = executor.getPoolSize();
+            activeCount = executor.getActiveCount();
+            queueSize = executor.getQueueSize();
+            completedTaskCount = executor.getCompletedTaskCount();
+        }
+    }
+}
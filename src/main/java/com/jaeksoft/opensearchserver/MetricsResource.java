@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+/**
+ * The metrics in the Prometheus text format
+ */
+@Path("/")
+public class MetricsResource {
+
+    public final static String TEXT_FORMAT = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final Components components;
+
+    public MetricsResource(final Components components) {
+        this.components = components;
+    }
+
+    @GET
+    @Path("/")
+    @Produces(TEXT_FORMAT)
+    public String metrics() {
+        final PrometheusWriter writer = new PrometheusWriter();
+        components.collectMetrics(writer);
+        return writer.toString();
+    }
+
+    final static class PrometheusWriter implements ServerMetrics.Sink {
+
+        private final static double[] QUANTILES = {0.5, 0.9, 0.99};
+        private final static double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+        private final StringBuilder sb = new StringBuilder(8192);
+        private final Set<String> families = new HashSet<>();
+
+        private void header(final String name, final String help, final String type) {
+            if (families.add(name))
+                sb.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                    .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+
+        private void sample(final String name,
+                            final String[] labels,
+                            final String extraLabel,
+                            final String extraValue,
+                            final double value) {
+            sb.append(name);
+            if (labels.length > 0 || extraLabel != null) {
+                sb.append('{');
+                for (int i = 0; i + 1 < labels.length; i += 2)
+                    label(labels[i], labels[i + 1]).append(',');
+                if (extraLabel != null)
+                    label(extraLabel, extraValue).append(',');
+                sb.setLength(sb.length() - 1);
+                sb.append('}');
+            }
+            sb.append(' ');
+            if (value == Math.rint(value) && Math.abs(value) < 1e15)
+                sb.append((long) value);
+            else
+                sb.append(value);
+            sb.append('\n');
+        }
+
+        private StringBuilder label(final String name, final String value) {
+            sb.append(name).append("=\"");
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if (c == '\\' || c == '"')
+                    sb.append('\\').append(c);
+                else if (c == '\n')
+                    sb.append("\\n");
+                else
+                    sb.append(c);
+            }
+            return sb.append('"');
+        }
+
+        @Override
+        public void counter(final String name, final String help, final double value, final String... labels) {
+            header(name, help, "counter");
+            sample(name, labels, null, null, value);
+        }
+
+        @Override
+        public void gauge(final String name, final String help, final double value, final String... labels) {
+            header(name, help, "gauge");
+            sample(name, labels, null, null, value);
+        }
+
+        @Override
+        public void summary(final String name,
+                            final String help,
+                            final LatencyHistogram histogram,
+                            final String... labels) {
+            header(name, help, "summary");
+            for (final double quantile : QUANTILES)
+                sample(name, labels, "quantile", Double.toString(quantile),
+                    histogram.getQuantile(quantile) / NANOS_PER_SECOND);
+            sample(name + "_sum", labels, null, null, histogram.getSum() / NANOS_PER_SECOND);
+            sample(name + "_count", labels, null, null, histogram.getCount());
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.qwazr.extractor.ExtractorManager;
+import com.qwazr.extractor.ExtractorServiceInterface;
+import com.qwazr.extractor.ParserResult;
+import com.qwazr.utils.LoggerUtils;
+import com.qwazr.utils.ObjectMappers;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.NotAcceptableException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Registry of the shaded parser jars, loaded on demand.
+ * <p>
+ * At startup, the jars are only listed: the registry is not scanning them.
+ * Every jar is identified by the SHA-256 of its content, which is computed again only when the size
+ * or the modification time of the file has changed.
+ * A jar is loaded, with its own class loader, the first time one of its media types is requested.
+ * <p>
+ * The media types supported by a jar are learned from the extractions:
+ * a jar which extracts a document supports its media type, a jar which rejects it does not support it.
+ * A failed extraction (e.g. a corrupted document) teaches nothing.
+ * The index (file, size, modification time, checksum, supported and unsupported media types) is persisted,
+ * after a restart the first document of a known media type only loads the jar which supports it,
+ * and a media type rejected by every jar is rejected without loading any jar.
+ * A media type which is unknown is tried on the loaded jars first, then on the other jars, in file name order.
+ */
+@ThreadSafe
+public class ParserRegistry implements AutoCloseable {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(ParserRegistry.class);
+
+    private final static String INDEX_FILE = "registry.json";
+    private final static String JARS_DIRECTORY = "jars";
+
+    private final Path registryDirectory;
+    private final List<Jar> jars;
+    private final Map<String, Jar> jarByMediaType;
+    private final ExtractorServiceInterface service;
+
+    /**
+     * @param parsersDirectory  the directory of the shaded parser jars
+     * @param registryDirectory the directory of the index and of the jar links
+     * @throws IOException if the parsers directory cannot be read
+     */
+    public ParserRegistry(final Path parsersDirectory, final Path registryDirectory) throws IOException {
+        this.registryDirectory = registryDirectory;
+        if (!Files.exists(registryDirectory))
+            Files.createDirectories(registryDirectory);
+        deleteLinks(registryDirectory.resolve(JARS_DIRECTORY));
+        final Map<String, JsonNode> indexByFileName = new HashMap<>();
+        final Map<String, JsonNode> indexByChecksum = new HashMap<>();
+        for (final JsonNode entry : readIndex()) {
+            indexByFileName.put(entry.path("file").asText(), entry);
+            indexByChecksum.put(entry.path("sha256").asText(), entry);
+        }
+        final List<Path> jarPaths;
+        try (final Stream<Path> files = Files.list(parsersDirectory)) {
+            jarPaths = files.filter(file -> file.getFileName().toString().endsWith(".jar"))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+        jars = new ArrayList<>(jarPaths.size());
+        jarByMediaType = new ConcurrentHashMap<>();
+        int checksums = 0;
+        for (final Path jarPath : jarPaths) {
+            final String fileName = jarPath.getFileName().toString();
+            final long size = Files.size(jarPath);
+            final long lastModified = Files.getLastModifiedTime(jarPath).toMillis();
+            final JsonNode known = indexByFileName.get(fileName);
+            final String checksum;
+            if (known != null && known.path("size").asLong() == size
+                && known.path("lastModified").asLong() == lastModified) {
+                checksum = known.path("sha256").asText();
+            } else {
+                checksum = checksum(jarPath);
+                checksums++;
+            }
+            final Jar jar = new Jar(jarPath, size, lastModified, checksum);
+            final JsonNode indexed = indexByChecksum.get(checksum);
+            if (indexed != null) {
+                indexed.path("mediaTypes").forEach(mediaType -> jar.mediaTypes.add(mediaType.asText()));
+                indexed.path("unsupportedMediaTypes")
+                    .forEach(mediaType -> jar.unsupportedMediaTypes.add(mediaType.asText()));
+            }
+            jar.mediaTypes.forEach(mediaType -> jarByMediaType.putIfAbsent(mediaType, jar));
+            jars.add(jar);
+        }
+        final int computedChecksums = checksums;
+        LOGGER.info(() -> jars.size() + " parser jar(s), " + jarByMediaType.size() + " known media type(s), "
+            + computedChecksums + " checksum(s) computed");
+        writeIndex();
+        service = (ExtractorServiceInterface) Proxy.newProxyInstance(
+            ExtractorServiceInterface.class.getClassLoader(), new Class<?>[]{ExtractorServiceInterface.class},
+            this::invoke);
+    }
+
+    private ArrayNode readIndex() {
+        final Path indexPath = registryDirectory.resolve(INDEX_FILE);
+        if (Files.exists(indexPath)) {
+            try {
+                final JsonNode index = ObjectMappers.JSON.readTree(indexPath.toFile());
+                if (index.path("jars").isArray())
+                    return (ArrayNode) index.get("jars");
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, e, () -> "The parser registry is ignored: " + indexPath);
+            }
+        }
+        return ObjectMappers.JSON.createArrayNode();
+    }
+
+    private synchronized void writeIndex() {
+        final ObjectNode index = ObjectMappers.JSON.createObjectNode();
+        final ArrayNode entries = index.putArray("jars");
+        for (final Jar jar : jars) {
+            final ObjectNode entry = entries.addObject()
+                .put("file", jar.path.getFileName().toString())
+                .put("size", jar.size)
+                .put("lastModified", jar.lastModified)
+                .put("sha256", jar.checksum);
+            final ArrayNode mediaTypes = entry.putArray("mediaTypes");
+            jar.mediaTypes.stream().sorted().forEach(mediaTypes::add);
+            final ArrayNode unsupportedMediaTypes = entry.putArray("unsupportedMediaTypes");
+            jar.unsupportedMediaTypes.stream().sorted().forEach(unsupportedMediaTypes::add);
+        }
+        final Path indexPath = registryDirectory.resolve(INDEX_FILE);
+        try {
+            final Path tempFile = Files.createTempFile(registryDirectory, INDEX_FILE, ".tmp");
+            ObjectMappers.JSON.writeValue(tempFile.toFile(), index);
+            Files.move(tempFile, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Cannot write the parser registry: " + indexPath);
+        }
+    }
+
+    private static String checksum(final Path jarPath) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new InternalServerErrorException("Digest not available: SHA-256", e);
+        }
+        try (final InputStream input = new DigestInputStream(Files.newInputStream(jarPath), digest)) {
+            input.transferTo(OutputStream.nullOutputStream());
+        }
+        final StringBuilder sb = new StringBuilder(64);
+        for (final byte b : digest.digest())
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+    /**
+     * @return the extractor service: the extractions are routed to the jar supporting the media type,
+     * the other methods are served by the jars, one after the other, until one of them supports the call.
+     */
+    public ExtractorServiceInterface getService() {
+        return service;
+    }
+
+    private Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "ParserRegistry" + jarByMediaType.keySet();
+            }
+        }
+        if ("extract".equals(method.getName()) && args != null && args.length == 3 && args[0] == null
+            && args[1] instanceof InputStream && args[2] instanceof MediaType)
+            return extract((InputStream) args[1], (MediaType) args[2]);
+        return invokeOnJars(method, args);
+    }
+
+    /**
+     * Call a method on the jars, the loaded ones first.
+     * A collection or a map is merged from every jar, any other result is the one of the first supporting jar.
+     */
+    private Object invokeOnJars(final Method method, final Object[] args) throws Throwable {
+        // An input stream can only be read once
+        final Object[] buffered = args == null ? null : args.clone();
+        if (buffered != null)
+            for (int i = 0; i < buffered.length; i++)
+                if (buffered[i] instanceof InputStream)
+                    buffered[i] = ((InputStream) buffered[i]).readAllBytes();
+        final boolean merge = Collection.class.isAssignableFrom(method.getReturnType())
+            || Map.class.isAssignableFrom(method.getReturnType());
+        Object merged = null;
+        WebApplicationException unsupported = null;
+        for (final Jar jar : getCandidates(null)) {
+            final Object result;
+            try {
+                result = method.invoke(jar.getService(), unbuffer(args, buffered));
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof WebApplicationException && isUnsupported(
+                    (WebApplicationException) e.getCause())) {
+                    unsupported = (WebApplicationException) e.getCause();
+                    continue;
+                }
+                throw e.getCause();
+            }
+            if (!merge)
+                return result;
+            merged = merge(merged, result);
+        }
+        if (merge)
+            return merged;
+        throw unsupported != null ? unsupported : new NotAcceptableException("No parser for " + method.getName());
+    }
+
+    private static Object[] unbuffer(final Object[] args, final Object[] buffered) {
+        if (args == null)
+            return null;
+        final Object[] copy = args.clone();
+        for (int i = 0; i < copy.length; i++)
+            if (args[i] instanceof InputStream)
+                copy[i] = new ByteArrayInputStream((byte[]) buffered[i]);
+        return copy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object merge(final Object merged, final Object result) {
+        if (result == null)
+            return merged;
+        if (merged == null) {
+            if (result instanceof Set)
+                return new LinkedHashSet<>((Set<Object>) result);
+            if (result instanceof Collection)
+                return new ArrayList<>((Collection<Object>) result);
+            return new LinkedHashMap<>((Map<Object, Object>) result);
+        }
+        if (merged instanceof Collection)
+            ((Collection<Object>) merged).addAll((Collection<Object>) result);
+        else
+            ((Map<Object, Object>) result).forEach(((Map<Object, Object>) merged)::putIfAbsent);
+        return merged;
+    }
+
+    /**
+     * @return the jars which may support the media type (every jar if null), the loaded ones first
+     */
+    private List<Jar> getCandidates(final String mediaType) {
+        final List<Jar> candidates = new ArrayList<>(jars.size());
+        for (final Jar jar : jars)
+            if (jar.isLoaded() && (mediaType == null || !jar.unsupportedMediaTypes.contains(mediaType)))
+                candidates.add(jar);
+        for (final Jar jar : jars)
+            if (!jar.isLoaded() && (mediaType == null || !jar.unsupportedMediaTypes.contains(mediaType)))
+                candidates.add(jar);
+        return candidates;
+    }
+
+    private static String getKey(final MediaType mediaType) {
+        return (mediaType.getType() + '/' + mediaType.getSubtype()).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Extract a document with the jar supporting its media type
+     *
+     * @param inputStream the content of the document
+     * @param mediaType   the media type of the document
+     * @return the extraction result
+     * @throws Exception the error thrown by the parser
+     */
+    public ParserResult extract(final InputStream inputStream, final MediaType mediaType) throws Exception {
+        if (mediaType == null)
+            return service.extract(null, inputStream, null);
+        final String key = getKey(mediaType);
+        final Jar known = jarByMediaType.get(key);
+        if (known != null)
+            return known.getService().extract(null, inputStream, mediaType);
+        // Unknown media type: the loaded jars are tried first, the jars known to reject it are skipped
+        final List<Jar> candidates = getCandidates(key);
+        if (candidates.isEmpty())
+            throw new NotAcceptableException("No parser for the media type: " + key);
+        final byte[] bytes = inputStream.readAllBytes();
+        Exception failure = null;
+        boolean rejected = false;
+        try {
+            for (final Jar jar : candidates) {
+                try {
+                    final ParserResult parserResult =
+                        jar.getService().extract(null, new ByteArrayInputStream(bytes), mediaType);
+                    learn(jar, key);
+                    return parserResult;
+                } catch (WebApplicationException e) {
+                    if (isUnsupported(e)) {
+                        rejected |= jar.unsupportedMediaTypes.add(key);
+                        continue;
+                    }
+                    // The document may be corrupted, or the jar may be the wrong one: nothing is learned
+                    if (failure == null)
+                        failure = e;
+                } catch (Exception e) {
+                    if (failure == null)
+                        failure = e;
+                }
+            }
+        } finally {
+            if (rejected)
+                writeIndex();
+        }
+        if (failure != null)
+            throw failure;
+        throw new NotAcceptableException("No parser for the media type: " + key);
+    }
+
+    private static boolean isUnsupported(final WebApplicationException e) {
+        final int status = e.getResponse() == null ? 0 : e.getResponse().getStatus();
+        return status == 404 || status == 406 || status == 415;
+    }
+
+    /**
+     * Only called after a successful extraction
+     */
+    private void learn(final Jar jar, final String mediaType) {
+        if (jarByMediaType.putIfAbsent(mediaType, jar) != null)
+            return;
+        jar.mediaTypes.add(mediaType);
+        LOGGER.info(() -> "The media type " + mediaType + " is extracted by " + jar.path.getFileName());
+        writeIndex();
+    }
+
+    /**
+     * @return the known media types, and the file name of the jar supporting them
+     */
+    Map<String, String> getMediaTypes() {
+        final Map<String, String> mediaTypes = new HashMap<>();
+        jarByMediaType.forEach((mediaType, jar) -> mediaTypes.put(mediaType, jar.path.getFileName().toString()));
+        return mediaTypes;
+    }
+
+    /**
+     * @return the number of jars which have been loaded
+     */
+    public int getLoadedCount() {
+        return (int) jars.stream().filter(Jar::isLoaded).count();
+    }
+
+    /**
+     * A jar is loaded from its own directory, which contains a link to the jar
+     */
+    private static void link(final Path jarPath, final Path directory) throws IOException {
+        if (!Files.exists(directory))
+            Files.createDirectories(directory);
+        final Path link = directory.resolve(jarPath.getFileName());
+        if (Files.exists(link))
+            return;
+        try {
+            Files.createSymbolicLink(link, jarPath.toAbsolutePath());
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(jarPath, link, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * The links of the previous session may target jars which have been replaced
+     */
+    private static void deleteLinks(final Path directory) throws IOException {
+        if (!Files.exists(directory))
+            return;
+        try (final Stream<Path> files = Files.walk(directory)) {
+            for (final Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.deleteIfExists(file);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (final Jar jar : jars)
+            jar.close();
+    }
+
+    private final class Jar implements AutoCloseable {
+
+        private final Path path;
+        private final long size;
+        private final long lastModified;
+        private final String checksum;
+        private final Set<String> mediaTypes;
+        private final Set<String> unsupportedMediaTypes;
+        private volatile Object extractorManager;
+        private volatile ExtractorServiceInterface extractorService;
+
+        private Jar(final Path path, final long size, final long lastModified, final String checksum) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+            this.mediaTypes = ConcurrentHashMap.newKeySet();
+            this.unsupportedMediaTypes = ConcurrentHashMap.newKeySet();
+        }
+
+        private boolean isLoaded() {
+            return extractorService != null;
+        }
+
+        private ExtractorServiceInterface getService() throws IOException {
+            if (extractorService != null)
+                return extractorService;
+            synchronized (this) {
+                if (extractorService == null) {
+                    final long start = System.nanoTime();
+                    final Path directory = registryDirectory.resolve(JARS_DIRECTORY).resolve(checksum);
+                    link(path, directory);
+                    final ExtractorManager manager = new ExtractorManager();
+                    manager.registerShadedJars(directory);
+                    extractorManager = manager;
+                    extractorService = manager.getService();
+                    LOGGER.info(() -> "Parser jar loaded in " + (System.nanoTime() - start) / 1000000 + " ms: "
+                        + path.getFileName());
+                }
+                return extractorService;
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (extractorManager instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) extractorManager).close();
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, e, () -> "Cannot close the parser jar: " + path.getFileName());
+                }
+            }
+            extractorManager = null;
+            extractorService = null;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import java.util.concurrent.RejectedExecutionException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * A task rejected by a full executor (e.g. a crawl session beyond crawlerExecutorThreads)
+ * is answered with a 503: the client can retry later.
+ */
+@Provider
+public class RejectedExecutionMapper implements ExceptionMapper<RejectedExecutionException> {
+
+    private final static String RETRY_AFTER_SECONDS = "30";
+
+    @Override
+    public Response toResponse(final RejectedExecutionException exception) {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+            .header("Retry-After", RETRY_AFTER_SECONDS)
+            .entity("The server is busy, retry later: " + exception.getMessage())
+            .type(MediaType.TEXT_PLAIN_TYPE)
+            .build();
+    }
+}
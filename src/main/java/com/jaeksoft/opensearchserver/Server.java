@@ -32,10 +32,15 @@ import org.keycloak.adapters.servlet.KeycloakOIDCFilter;
 public class Server extends Components {
 
     private final GenericServer server;
+    private final WarmUp warmUp;
 
     private Server(final ServerConfiguration configuration) throws IOException {
         super(configuration.dataDirectory);
 
+        // The components are created concurrently, the builders below wait for the ones they need:
+        // the server starts listening once the components of the web application exist
+        warmUp = warmUp();
+
         final GenericServerBuilder serverBuilder = GenericServer.of(configuration)
             .webAppAccessLogger(Logger.getLogger("com.qwazr.AccessLogs"))
             .sessionPersistenceManager(getSessionPersistenceManager());
@@ -44,7 +49,8 @@ public class Server extends Components {
 
         webappBuilder
             .registerCustomFaviconServlet("/com/jaeksoft/opensearchserver/front/favicon.ico")
-            .registerStaticServlet("/static/*", "/com/jaeksoft/opensearchserver/front/static")
+            .registerServlet("/static/*", StaticAssetServlet.class,
+                Map.of(StaticAssetServlet.RESOURCE_PARAM, "/com/jaeksoft/opensearchserver/front/static"))
             .registerStaticServlet("/", "/com/jaeksoft/opensearchserver/front/index.html")
             .registerStaticServlet("/manifest.json", "/com/jaeksoft/opensearchserver/front/manifest.json")
             .registerJaxRsResources(
@@ -53,6 +59,8 @@ public class Server extends Components {
                     .singletons(
                         getIndexService(),
                         getWebCrawlerService(),
+                        new RejectedExecutionMapper(),
+                        new IndexWriteFilter(this::indexWritten),
                         new CorsFilter()))
             .registerJaxRsResources(
                 ApplicationBuilder.of("/graphql/*")
@@ -60,22 +68,42 @@ public class Server extends Components {
                         JsonExceptionMapper.WebApplication.class,
                         JsonExceptionMapper.Generic.class)
                     .singletons(
-                        new GraphQLResource(getGraphQLService()),
+                        new GraphQLResource(getGraphQLService(), getGraphQLListFetchers()),
                         new CorsFilter()
-                    ));
+                    ))
+            .registerJaxRsResources(
+                ApplicationBuilder.of("/metrics/*")
+                    .singletons(new MetricsResource(this)))
+            .registerJaxRsResources(
+                ApplicationBuilder.of("/health/*")
+                    .singletons(new HealthResource(warmUp)));
+
+        if (getConfigService().isCompressionEnabled())
+            webappBuilder.registerFilter("/ws/* /graphql/*", CompressionFilter.class,
+                Map.of(CompressionFilter.MIN_BYTES_PARAM, Integer.toString(getConfigService().getCompressionMinBytes()),
+                    CompressionFilter.MEDIA_TYPES_PARAM, getConfigService().getCompressionMediaTypes()));
 
         final String keycloakFile = System.getenv(KeycloakOIDCFilter.CONFIG_FILE_PARAM);
         if (!StringUtils.isBlank(keycloakFile)) {
+            // The public paths (hashed static assets, metrics and health) are served without authentication
+            final String skipPattern = UserInfoFilter.toSkipPattern(getConfigService().getPublicPaths());
             webappBuilder
                 .registerFilter("/keycloak/* /*",
                     KeycloakOIDCFilter.class,
-                    Map.of(KeycloakOIDCFilter.CONFIG_FILE_PARAM, keycloakFile))
-                .registerFilter("/*", UserInfoFilter.class);
+                    skipPattern == null ? Map.of(KeycloakOIDCFilter.CONFIG_FILE_PARAM, keycloakFile) :
+                        Map.of(KeycloakOIDCFilter.CONFIG_FILE_PARAM, keycloakFile,
+                            KeycloakOIDCFilter.SKIP_PATTERN_PARAM, skipPattern))
+                .registerFilter("/*", UserInfoFilter.class,
+                    skipPattern == null ? Map.of() : Map.of(UserInfoFilter.SKIP_PATTERN_PARAM, skipPattern));
         }
 
         server = serverBuilder.build();
     }
 
+    public WarmUp getWarmUp() {
+        return warmUp;
+    }
+
     @Override
     public void close() {
         server.close();
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * The counters and the histograms of the crawl, extraction, indexing and GraphQL activity.
+ * <p>
+ * Recording does not allocate: the counters are LongAdder and the durations go to a {@link LatencyHistogram}.
+ * The values are read by a {@link Sink} (Prometheus text format, GraphQL stats query).
+ */
+@ThreadSafe
+public class ServerMetrics {
+
+    final LongAdder pagesCollected = new LongAdder();
+    final LongAdder pagesUnchanged = new LongAdder();
+    final LongAdder parsingErrors = new LongAdder();
+    final LatencyHistogram collectTime = new LatencyHistogram();
+    final LatencyHistogram extractionTime = new LatencyHistogram();
+    final LongAdder extractionCacheHits = new LongAdder();
+    final AtomicLong bufferedDocuments = new AtomicLong();
+    final LongAdder indexedDocuments = new LongAdder();
+    final LongAdder flushErrors = new LongAdder();
+    final LatencyHistogram flushTime = new LatencyHistogram();
+    final LongAdder graphqlErrors = new LongAdder();
+    final LatencyHistogram graphqlQueryTime = new LatencyHistogram();
+
+    void recordFlush(final int documents, final long nanos) {
+        indexedDocuments.add(documents);
+        flushTime.record(nanos);
+    }
+
+    /**
+     * Send every value to the sink
+     */
+    void collect(final Sink sink) {
+        sink.counter("oss_crawl_pages_total", "Pages collected by the crawlers", pagesCollected.sum());
+        sink.counter("oss_crawl_pages_unchanged_total", "Pages skipped because their content is unchanged",
+            pagesUnchanged.sum());
+        sink.counter("oss_crawl_parsing_errors_total", "Pages whose extraction failed", parsingErrors.sum());
+        sink.summary("oss_crawl_collect_seconds", "Duration of the collection of a page by the crawler thread",
+            collectTime);
+        sink.summary("oss_extraction_seconds", "Duration of the extraction of a document", extractionTime);
+        sink.counter("oss_extraction_cache_hits_total", "Extractions served by the extraction cache",
+            extractionCacheHits.sum());
+        sink.gauge("oss_index_buffered_documents", "Documents waiting in the crawl buffers",
+            bufferedDocuments.get());
+        sink.counter("oss_index_documents_total", "Documents posted to the index", indexedDocuments.sum());
+        sink.counter("oss_index_flush_errors_total", "Failed posts of a crawl buffer", flushErrors.sum());
+        sink.summary("oss_index_flush_seconds", "Duration of the post of a crawl buffer", flushTime);
+        sink.counter("oss_graphql_errors_total", "GraphQL operations returning errors", graphqlErrors.sum());
+        sink.summary("oss_graphql_query_seconds", "Duration of a GraphQL operation", graphqlQueryTime);
+    }
+
+    /**
+     * The reader of the metrics. The labels are given as name/value pairs.
+     */
+    public interface Sink {
+
+        void counter(String name, String help, double value, String... labels);
+
+        void gauge(String name, String help, double value, String... labels);
+
+        void summary(String name, String help, LatencyHistogram histogram, String... labels);
+    }
+}
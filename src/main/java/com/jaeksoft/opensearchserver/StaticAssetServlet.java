@@ -0,0 +1,275 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.qwazr.utils.LoggerUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serve the static assets of the front-end from memory.
+ * <p>
+ * The assets of the classpath directory given by the "resource" init parameter are loaded at startup,
+ * with their gzip variant (pre-built ".gz" file, or compressed at load time) and their brotli variant
+ * (pre-built ".br" file only). Every variant has a strong ETag, and a conditional GET is answered with a 304.
+ * The content-hashed files (e.g. "2.a51fdbf1.chunk.js") are immutable and cached for one year.
+ * The source maps ("*.map") are not served.
+ */
+public class StaticAssetServlet extends HttpServlet {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(StaticAssetServlet.class);
+
+    public final static String RESOURCE_PARAM = "resource";
+
+    private final static Pattern HASHED_NAME = Pattern.compile(".*\\.[0-9a-f]{8,}\\..*");
+    private final static String IMMUTABLE = "public, max-age=31536000, immutable";
+    private final static String REVALIDATE = "no-cache";
+
+    private final Map<String, Asset> assets = new HashMap<>();
+
+    private FileSystem jarFileSystem;
+
+    @Override
+    public void init() throws ServletException {
+        final String resource = getInitParameter(RESOURCE_PARAM);
+        final URL url = StaticAssetServlet.class.getResource(resource);
+        if (url == null)
+            throw new ServletException("Resource not found: " + resource);
+        try {
+            final URI uri = url.toURI();
+            if ("jar".equals(uri.getScheme())) {
+                FileSystem fileSystem;
+                try {
+                    // Opened by this servlet, closed by destroy()
+                    jarFileSystem = FileSystems.newFileSystem(uri, Map.of());
+                    fileSystem = jarFileSystem;
+                } catch (FileSystemAlreadyExistsException e) {
+                    fileSystem = FileSystems.getFileSystem(uri);
+                }
+                load(fileSystem.getPath(resource));
+            } else
+                load(Paths.get(uri));
+        } catch (IOException | URISyntaxException e) {
+            throw new ServletException("Cannot load the static assets: " + resource, e);
+        }
+        LOGGER.info(() -> assets.size() + " static asset(s) loaded from " + resource);
+    }
+
+    @Override
+    public void destroy() {
+        if (jarFileSystem != null) {
+            try {
+                jarFileSystem.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, e, () -> "Cannot close the file system: " + jarFileSystem);
+            }
+            jarFileSystem = null;
+        }
+        super.destroy();
+    }
+
+    /**
+     * @return true for a source map, or one of its compressed variants
+     */
+    private static boolean isSourceMap(final Path path) {
+        final String fileName = path.getFileName().toString();
+        return fileName.endsWith(".map") || fileName.endsWith(".map.gz") || fileName.endsWith(".map.br");
+    }
+
+    private void load(final Path root) throws IOException {
+        final Map<String, byte[]> files = new HashMap<>();
+        try (final Stream<Path> paths = Files.walk(root)) {
+            for (final Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)
+                .filter(file -> !isSourceMap(file))::iterator)
+                files.put('/' + root.relativize(path).toString().replace('\\', '/'), Files.readAllBytes(path));
+        }
+        files.forEach((name, bytes) -> {
+            if (name.endsWith(".gz") || name.endsWith(".br"))
+                return;
+            final String mimeType = getServletContext().getMimeType(name);
+            final byte[] gzip = files.containsKey(name + ".gz") ? files.get(name + ".gz") : gzip(bytes);
+            assets.put(name, new Asset(bytes, gzip, files.get(name + ".br"),
+                mimeType == null ? "application/octet-stream" : mimeType,
+                HASHED_NAME.matcher(name).matches() ? IMMUTABLE : REVALIDATE));
+        });
+    }
+
+    /**
+     * @return the compressed bytes, or null if the compression does not save anything
+     */
+    private static byte[] gzip(final byte[] bytes) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length / 2);
+        try (final GZIPOutputStream gzip = new GZIPOutputStream(output) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return output.size() < bytes.length ? output.toByteArray() : null;
+    }
+
+    private static String etag(final byte[] bytes, final String suffix) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder sb = new StringBuilder("\"");
+        final byte[] hash = digest.digest(bytes);
+        for (int i = 0; i < 16; i++)
+            sb.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+        return sb.append(suffix).append('"').toString();
+    }
+
+    /**
+     * @return true if the encoding is listed by the Accept-Encoding header, with a non-zero quality
+     */
+    static boolean accepts(final String acceptEncoding, final String encoding) {
+        if (acceptEncoding == null)
+            return false;
+        for (final String part : acceptEncoding.split(",")) {
+            final String[] params = part.trim().split(";");
+            if (!params[0].trim().equalsIgnoreCase(encoding))
+                continue;
+            for (int i = 1; i < params.length; i++) {
+                final String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean matchesEtag(final String ifNoneMatch, final String etag) {
+        if (ifNoneMatch == null)
+            return false;
+        for (final String candidate : ifNoneMatch.split(",")) {
+            final String trimmed = candidate.trim();
+            if (trimmed.equals("*") || trimmed.equals(etag))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    protected void doHead(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        serve(request, response, false);
+    }
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        serve(request, response, true);
+    }
+
+    private void serve(final HttpServletRequest request,
+                       final HttpServletResponse response,
+                       final boolean withBody) throws IOException {
+        final String pathInfo = request.getPathInfo();
+        final Asset asset = pathInfo == null ? null : assets.get(pathInfo);
+        if (asset == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        final String acceptEncoding = request.getHeader("Accept-Encoding");
+        final Variant variant;
+        if (asset.brotli != null && accepts(acceptEncoding, "br"))
+            variant = asset.brotli;
+        else if (asset.gzip != null && accepts(acceptEncoding, "gzip"))
+            variant = asset.gzip;
+        else
+            variant = asset.identity;
+        response.setHeader("Cache-Control", asset.cacheControl);
+        response.setHeader("ETag", variant.etag);
+        response.setHeader("Vary", "Accept-Encoding");
+        if (matchesEtag(request.getHeader("If-None-Match"), variant.etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setContentType(asset.contentType);
+        if (variant.encoding != null)
+            response.setHeader("Content-Encoding", variant.encoding);
+        response.setContentLength(variant.bytes.length);
+        if (withBody)
+            response.getOutputStream().write(variant.bytes);
+    }
+
+    private final static class Variant {
+
+        private final byte[] bytes;
+        private final String encoding;
+        private final String etag;
+
+        private Variant(final byte[] bytes, final String encoding) {
+            this.bytes = bytes;
+            this.encoding = encoding;
+            this.etag = etag(bytes, encoding == null ? "" : "-" + encoding);
+        }
+    }
+
+    private final static class Asset {
+
+        private final Variant identity;
+        private final Variant gzip;
+        private final Variant brotli;
+        private final String contentType;
+        private final String cacheControl;
+
+        private Asset(final byte[] bytes,
+                      final byte[] gzip,
+                      final byte[] brotli,
+                      final String contentType,
+                      final String cacheControl) {
+            this.identity = new Variant(bytes, null);
+            this.gzip = gzip == null ? null : new Variant(gzip, "gzip");
+            this.brotli = brotli == null ? null : new Variant(brotli, "br");
+            this.contentType = contentType;
+            this.cacheControl = cacheControl;
+        }
+    }
+}
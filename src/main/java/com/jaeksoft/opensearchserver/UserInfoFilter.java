@@ -18,6 +18,9 @@ package com.jaeksoft.opensearchserver;
 
 import java.io.IOException;
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpFilter;
@@ -26,22 +29,110 @@ import javax.servlet.http.HttpServletResponse;
 import org.keycloak.KeycloakPrincipal;
 import org.keycloak.representations.AccessToken;
 
+/**
+ * Add the identity of the authenticated user to the response headers.
+ * <p>
+ * The identity is read once per access token: it is cached by token id until the token expires.
+ * The requests matching the "skipPattern" init parameter (the public paths) are not filtered.
+ */
 class UserInfoFilter extends HttpFilter {
 
+    public final static String SKIP_PATTERN_PARAM = "skipPattern";
+
     private final static String AUTH_HEADER_USER = "X-Authenticated-User";
     private final static String AUTH_HEADER_NAME = "X-Authenticated-Name";
 
+    private final static int IDENTITY_CACHE_SIZE = 10000;
+
+    private final static String WILDCARD = "(?!(?:.*/)?\\.{1,2}(?:/.*)?$)[^%;\\\\]*";
+
+    private final LruCache<String, Identity> identities = new LruCache<>(IDENTITY_CACHE_SIZE);
+    private Pattern skipPattern;
+
+    @Override
+    public void init() {
+        final String skipPatternParam = getInitParameter(SKIP_PATTERN_PARAM);
+        skipPattern = skipPatternParam == null || skipPatternParam.isEmpty() ? null : Pattern.compile(skipPatternParam);
+    }
+
+    /**
+     * Build the regular expression matching a list of paths, as expected by the "skipPattern" parameters.
+     * The OIDC filter matches the raw request URI: the wildcard does not match a dot segment ("." or ".."),
+     * an encoded character ('%'), a path parameter (';') or a backslash,
+     * so a path resolved outside of a public path by the container is never skipped.
+     *
+     * @param publicPaths comma separated paths, a path ending with "/*" matches every path below it
+     * @return the regular expression, or null if the list is empty
+     */
+    static String toSkipPattern(final String publicPaths) {
+        if (publicPaths == null)
+            return null;
+        final List<String> patterns = new ArrayList<>();
+        for (final String publicPath : publicPaths.split(",")) {
+            final String path = publicPath.trim();
+            if (path.isEmpty())
+                continue;
+            if (path.endsWith("/*"))
+                patterns.add(Pattern.quote(path.substring(0, path.length() - 1)) + WILDCARD);
+            else
+                patterns.add(Pattern.quote(path));
+        }
+        return patterns.isEmpty() ? null : String.join("|", patterns);
+    }
+
     protected void doFilter(final HttpServletRequest req, final HttpServletResponse res, final FilterChain chain)
         throws IOException, ServletException {
+        if (skipPattern != null && skipPattern.matcher(getPath(req)).matches()) {
+            chain.doFilter(req, res);
+            return;
+        }
         final Principal principal = req.getUserPrincipal();
         if (principal != null) {
             if (principal instanceof KeycloakPrincipal) {
-                final KeycloakPrincipal keycloakPrincipal = (KeycloakPrincipal) principal;
-                final AccessToken accessToken = keycloakPrincipal.getKeycloakSecurityContext().getToken();
-                res.addHeader(AUTH_HEADER_USER, accessToken.getPreferredUsername());
-                res.addHeader(AUTH_HEADER_NAME, accessToken.getName());
+                final KeycloakPrincipal<?> keycloakPrincipal = (KeycloakPrincipal<?>) principal;
+                final Identity identity = getIdentity(keycloakPrincipal.getKeycloakSecurityContext().getToken());
+                res.addHeader(AUTH_HEADER_USER, identity.user);
+                res.addHeader(AUTH_HEADER_NAME, identity.name);
             }
         }
         chain.doFilter(req, res);
     }
+
+    /**
+     * @return the path normalized by the container
+     */
+    private static String getPath(final HttpServletRequest req) {
+        final String pathInfo = req.getPathInfo();
+        return pathInfo == null ? req.getServletPath() : req.getServletPath() + pathInfo;
+    }
+
+    private Identity getIdentity(final AccessToken accessToken) {
+        final String tokenId = accessToken.getId();
+        if (tokenId == null)
+            return new Identity(accessToken);
+        final Identity identity = identities.get(tokenId);
+        if (identity != null && !identity.isExpired())
+            return identity;
+        final Identity newIdentity = new Identity(accessToken);
+        identities.put(tokenId, newIdentity);
+        return newIdentity;
+    }
+
+    private final static class Identity {
+
+        private final String user;
+        private final String name;
+        private final long expirationMs;
+
+        private Identity(final AccessToken accessToken) {
+            user = accessToken.getPreferredUsername();
+            name = accessToken.getName();
+            final Long exp = accessToken.getExp();
+            expirationMs = exp == null || exp == 0 ? Long.MAX_VALUE : exp * 1000;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() > expirationMs;
+        }
+    }
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.qwazr.utils.LoggerUtils;
+import com.qwazr.utils.concurrent.SupplierEx;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * The eager creation of the components at startup.
+ * <p>
+ * Every task runs in its own thread: the independent components are created concurrently,
+ * a component which depends on another one waits until the other one has been created by its task.
+ * The duration of every task is logged, the server is ready once every task is done.
+ */
+@ThreadSafe
+public class WarmUp {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(WarmUp.class);
+
+    private final Map<String, Task> tasks;
+    private volatile long startNanoTime;
+    private volatile long durationMs;
+    private CompletableFuture<Void> completion;
+
+    WarmUp() {
+        tasks = new LinkedHashMap<>();
+    }
+
+    /**
+     * Register a task
+     *
+     * @param name     the name of the component
+     * @param supplier the provider of the component
+     * @return this warm-up
+     */
+    synchronized WarmUp task(final String name, final SupplierEx<?, Exception> supplier) {
+        if (completion != null)
+            throw new IllegalStateException("The warm-up is already started");
+        tasks.put(name, new Task(name, supplier));
+        return this;
+    }
+
+    /**
+     * Start every task
+     *
+     * @return this warm-up
+     */
+    synchronized WarmUp start() {
+        if (completion != null)
+            throw new IllegalStateException("The warm-up is already started");
+        startNanoTime = System.nanoTime();
+        final List<CompletableFuture<Void>> futures = new ArrayList<>(tasks.size());
+        for (final Task task : tasks.values())
+            futures.add(CompletableFuture.runAsync(task, command -> {
+                final Thread thread = new Thread(command, "warm-up-" + task.name);
+                thread.setDaemon(true);
+                thread.start();
+            }));
+        completion = CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenRun(() -> {
+            durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanoTime);
+            LOGGER.info(() -> "Warm-up done in " + durationMs + " ms" + (allReady() ? "" : " with errors"));
+        });
+        return this;
+    }
+
+    /**
+     * @return the future completed when every task is done, successfully or not
+     */
+    public synchronized CompletableFuture<Void> getCompletion() {
+        if (completion == null)
+            throw new IllegalStateException("The warm-up is not started");
+        return completion;
+    }
+
+    /**
+     * @return true if every task has created its component
+     */
+    public boolean isReady() {
+        final CompletableFuture<Void> c;
+        synchronized (this) {
+            c = completion;
+        }
+        return c != null && c.isDone() && allReady();
+    }
+
+    private boolean allReady() {
+        for (final Task task : tasks.values())
+            if (task.state != State.READY)
+                return false;
+        return true;
+    }
+
+    public Status getStatus() {
+        return new Status(this);
+    }
+
+    public enum State {
+        PENDING, READY, FAILED
+    }
+
+    private static class Task implements Runnable {
+
+        private final String name;
+        private final SupplierEx<?, Exception> supplier;
+
+        private volatile State state;
+        private volatile long durationMs;
+        private volatile String error;
+
+        private Task(final String name, final SupplierEx<?, Exception> supplier) {
+            this.name = name;
+            this.supplier = supplier;
+            this.state = State.PENDING;
+        }
+
+        @Override
+        public void run() {
+            final long start = System.nanoTime();
+            try {
+                supplier.get();
+                durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                state = State.READY;
+                LOGGER.info(() -> "Warm-up of " + name + " done in " + durationMs + " ms");
+            } catch (Exception e) {
+                durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                error = e.getMessage() == null ? e.getClass().getName() : e.getMessage();
+                state = State.FAILED;
+                LOGGER.log(Level.SEVERE, e, () -> "Warm-up of " + name + " failed after " + durationMs + " ms");
+            }
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @JsonAutoDetect(setterVisibility = JsonAutoDetect.Visibility.NONE,
+        getterVisibility = JsonAutoDetect.Visibility.NONE,
+        creatorVisibility = JsonAutoDetect.Visibility.NONE,
+        isGetterVisibility = JsonAutoDetect.Visibility.NONE,
+        fieldVisibility = JsonAutoDetect.Visibility.PUBLIC_ONLY)
+    public static class Status {
+
+        public final boolean ready;
+        public final Long durationMs;
+        public final List<Component> components;
+
+        private Status(final WarmUp warmUp) {
+            synchronized (warmUp) {
+                ready = warmUp.isReady();
+                durationMs = warmUp.completion != null && warmUp.completion.isDone() ? warmUp.durationMs : null;
+                components = new ArrayList<>(warmUp.tasks.size());
+                warmUp.tasks.values().forEach(task -> components.add(new Component(task)));
+            }
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @JsonAutoDetect(setterVisibility = JsonAutoDetect.Visibility.NONE,
+        getterVisibility = JsonAutoDetect.Visibility.NONE,
+        creatorVisibility = JsonAutoDetect.Visibility.NONE,
+        isGetterVisibility = JsonAutoDetect.Visibility.NONE,
+        fieldVisibility = JsonAutoDetect.Visibility.PUBLIC_ONLY)
+    public static class Component {
+
+        public final String name;
+        public final State state;
+        public final Long durationMs;
+        public final String error;
+
+        private Component(final Task task) {
+            name = task.name;
+            state = task.state;
+            durationMs = state == State.PENDING ? null : task.durationMs;
+            error = task.error;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import io.undertow.servlet.api.SessionPersistenceManager.PersistentSession;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompactSessionPersistenceManagerTest {
+
+    private final static String DEPLOYMENT = "ROOT";
+
+    private static PersistentSession session(final String value) {
+        final Map<String, Object> attributes = new HashMap<>();
+        attributes.put("user", value);
+        attributes.put("notSerializable", new Object());
+        return new PersistentSession(new Date(System.currentTimeMillis() + 3600_000), attributes);
+    }
+
+    @Test
+    public void checkPersistence() throws Exception {
+        final Path directory = Files.createTempDirectory("web-sessions");
+
+        try (final CompactSessionPersistenceManager manager = new CompactSessionPersistenceManager(directory)) {
+            Assert.assertTrue(manager.loadSessionAttributes(DEPLOYMENT, null).isEmpty());
+            final Map<String, PersistentSession> sessions = new HashMap<>();
+            sessions.put("s1", session("user1"));
+            sessions.put("s2", session("user2"));
+            sessions.put("expired", new PersistentSession(new Date(1000), new HashMap<>()));
+            manager.persistSessions(DEPLOYMENT, sessions);
+        }
+
+        // Simulate a crash while writing a record
+        Files.write(directory.resolve("sessions.log"), new byte[]{0, 0, 0, 9, 1, 2}, StandardOpenOption.APPEND);
+
+        try (final CompactSessionPersistenceManager manager = new CompactSessionPersistenceManager(directory)) {
+            final Map<String, PersistentSession> sessions = manager.loadSessionAttributes(DEPLOYMENT, null);
+            Assert.assertEquals(2, sessions.size());
+            Assert.assertEquals(Map.of("user", "user1"), Map.copyOf(sessions.get("s1").getSessionData()));
+            // s1 is restored then invalidated, s2 is not restored, s3 is new
+            manager.persistSessions(DEPLOYMENT, Map.of("s3", session("user3")));
+        }
+
+        try (final CompactSessionPersistenceManager manager = new CompactSessionPersistenceManager(directory)) {
+            final Map<String, PersistentSession> sessions = manager.loadSessionAttributes(DEPLOYMENT, null);
+            Assert.assertEquals(2, sessions.size());
+            Assert.assertNull(sessions.get("s1"));
+            Assert.assertEquals("user2", sessions.get("s2").getSessionData().get("user"));
+            Assert.assertEquals("user3", sessions.get("s3").getSessionData().get("user"));
+            manager.clear(DEPLOYMENT);
+        }
+
+        try (final CompactSessionPersistenceManager manager = new CompactSessionPersistenceManager(directory)) {
+            Assert.assertTrue(manager.loadSessionAttributes(DEPLOYMENT, null).isEmpty());
+        }
+    }
+
+    @Test
+    public void checkCompaction() throws Exception {
+        final Path directory = Files.createTempDirectory("web-sessions");
+        final Path logPath = directory.resolve("sessions.log");
+
+        try (final CompactSessionPersistenceManager manager = new CompactSessionPersistenceManager(directory)) {
+            manager.load();
+            for (int i = 0; i < 1500; i++)
+                manager.persistSessions(DEPLOYMENT, Map.of("s", session("user" + i)));
+        }
+
+        // 1500 records of about 58 bytes, the log only keeps the records appended since the compaction
+        Assert.assertTrue(Files.size(logPath) < 1000 * 58);
+        try (final CompactSessionPersistenceManager manager = new CompactSessionPersistenceManager(directory)) {
+            final Map<String, PersistentSession> sessions = manager.loadSessionAttributes(DEPLOYMENT, null);
+            Assert.assertEquals(1, sessions.size());
+            Assert.assertEquals("user1499", sessions.get("s").getSessionData().get("user"));
+        }
+    }
+}
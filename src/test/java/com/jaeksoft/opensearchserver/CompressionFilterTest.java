@@ -0,0 +1,248 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompressionFilterTest {
+
+    private final static String SMALL_BODY = "{\"ok\":true}";
+    private final static String LARGE_BODY = "{\"text\":\"" + "compressible ".repeat(200) + "\"}";
+
+    @Test
+    public void compressedResponseDropsTheContentLength() throws Exception {
+        for (final String method : new String[]{"setHeader", "addHeader", "setIntHeader", "addIntHeader",
+            "setContentLength"}) {
+            final FakeResponse response = filter(LARGE_BODY, method);
+            Assert.assertEquals(method, "gzip", response.getHeader("Content-Encoding"));
+            Assert.assertNull(method, response.getHeader("Content-Length"));
+            Assert.assertEquals(method, LARGE_BODY, response.getGunzippedBody());
+        }
+    }
+
+    @Test
+    public void smallResponseKeepsTheContentLength() throws Exception {
+        for (final String method : new String[]{"setHeader", "addHeader", "setIntHeader", "addIntHeader"}) {
+            final FakeResponse response = filter(SMALL_BODY, method);
+            Assert.assertNull(method, response.getHeader("Content-Encoding"));
+            Assert.assertEquals(method, Integer.toString(SMALL_BODY.length()), response.getHeader("Content-Length"));
+            Assert.assertEquals(method, SMALL_BODY, response.getBody());
+        }
+    }
+
+    @Test
+    public void asyncResponseIsFinishedWhenTheContextCompletes() throws Exception {
+        for (final String body : new String[]{SMALL_BODY, LARGE_BODY}) {
+            final List<AsyncListener> listeners = new ArrayList<>();
+            final FakeResponse response = new FakeResponse();
+            // The body is written, the output stream is not closed by the asynchronous handler
+            newFilter().doFilter(request(listeners), response.proxy, (req, res) -> {
+                res.setContentType("application/json");
+                res.getOutputStream().write(body.getBytes(StandardCharsets.UTF_8));
+            });
+            Assert.assertEquals(1, listeners.size());
+            final int bufferedSize = response.body.size();
+            listeners.get(0).onComplete(null);
+            listeners.get(0).onComplete(null);
+            if (SMALL_BODY.equals(body)) {
+                Assert.assertEquals(0, bufferedSize);
+                Assert.assertEquals(SMALL_BODY, response.getBody());
+                Assert.assertEquals(Integer.toString(SMALL_BODY.length()), response.getHeader("Content-Length"));
+            } else
+                Assert.assertEquals(LARGE_BODY, response.getGunzippedBody());
+        }
+    }
+
+    @Test
+    public void nonBlockingWritesAreNotCompressed() throws Exception {
+        final FakeResponse response = new FakeResponse();
+        newFilter().doFilter(request(null), response.proxy, (req, res) -> {
+            res.setContentType("application/json");
+            final ServletOutputStream output = res.getOutputStream();
+            output.setWriteListener(null);
+            Assert.assertTrue(output.isReady());
+            output.write(LARGE_BODY.getBytes(StandardCharsets.UTF_8));
+        });
+        Assert.assertNull(response.getHeader("Content-Encoding"));
+        Assert.assertNull(response.getHeader("Content-Length"));
+        Assert.assertEquals(LARGE_BODY, response.getBody());
+    }
+
+    private static CompressionFilter newFilter() throws ServletException {
+        final CompressionFilter filter = new CompressionFilter();
+        filter.init(proxy(FilterConfig.class, (name, args) -> {
+            if ("getInitParameter".equals(name))
+                return Map.of(CompressionFilter.MIN_BYTES_PARAM, "64",
+                    CompressionFilter.MEDIA_TYPES_PARAM, "application/json").get(args[0]);
+            return null;
+        }));
+        return filter;
+    }
+
+    /**
+     * @param asyncListeners the listeners registered on the async context, null if the request is not async
+     */
+    private static HttpServletRequest request(final List<AsyncListener> asyncListeners) {
+        final AsyncContext asyncContext = proxy(AsyncContext.class, (name, args) -> {
+            if ("addListener".equals(name))
+                asyncListeners.add((AsyncListener) args[0]);
+            return null;
+        });
+        return proxy(HttpServletRequest.class, (name, args) -> {
+            switch (name) {
+                case "getHeader":
+                    return "Accept-Encoding".equals(args[0]) ? "gzip, deflate" : null;
+                case "getMethod":
+                    return "POST";
+                case "isAsyncStarted":
+                    return asyncListeners != null;
+                case "getAsyncContext":
+                    return asyncContext;
+                default:
+                    return false;
+            }
+        });
+    }
+
+    /**
+     * Filter a JSON response whose length is set by the given method before the body is written
+     */
+    private static FakeResponse filter(final String body, final String contentLengthMethod)
+        throws IOException, ServletException {
+        final FakeResponse fakeResponse = new FakeResponse();
+        final FilterChain chain = (req, res) -> {
+            final HttpServletResponse response = (HttpServletResponse) res;
+            response.setContentType("application/json");
+            final int length = body.getBytes(StandardCharsets.UTF_8).length;
+            switch (contentLengthMethod) {
+                case "setHeader":
+                    response.setHeader("Content-Length", Integer.toString(length));
+                    break;
+                case "addHeader":
+                    response.addHeader("content-length", Integer.toString(length));
+                    break;
+                case "setIntHeader":
+                    response.setIntHeader("Content-Length", length);
+                    break;
+                case "addIntHeader":
+                    response.addIntHeader("Content-Length", length);
+                    break;
+                default:
+                    response.setContentLength(length);
+            }
+            response.getOutputStream().write(body.getBytes(StandardCharsets.UTF_8));
+        };
+        newFilter().doFilter(request(null), fakeResponse.proxy, chain);
+        return fakeResponse;
+    }
+
+    private interface Handler {
+        Object invoke(String name, Object[] args) throws Exception;
+    }
+
+    private static <T> T proxy(final Class<T> type, final Handler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+            (proxy, method, args) -> handler.invoke(method.getName(), args)));
+    }
+
+    private static class FakeResponse {
+
+        private final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private String contentType;
+
+        private final ServletOutputStream output = new ServletOutputStream() {
+            @Override
+            public void write(final int b) {
+                body.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(final WriteListener writeListener) {
+            }
+        };
+
+        private final HttpServletResponse proxy = proxy(HttpServletResponse.class, (name, args) -> {
+            switch (name) {
+                case "setHeader":
+                case "setIntHeader":
+                    headers.put((String) args[0], new ArrayList<>(List.of(args[1].toString())));
+                    return null;
+                case "addHeader":
+                case "addIntHeader":
+                    headers.computeIfAbsent((String) args[0], n -> new ArrayList<>()).add(args[1].toString());
+                    return null;
+                case "setContentLength":
+                case "setContentLengthLong":
+                    headers.put("Content-Length", new ArrayList<>(List.of(args[0].toString())));
+                    return null;
+                case "getHeader":
+                    return getHeader((String) args[0]);
+                case "setContentType":
+                    contentType = (String) args[0];
+                    return null;
+                case "getContentType":
+                    return contentType;
+                case "getCharacterEncoding":
+                    return "UTF-8";
+                case "getOutputStream":
+                    return output;
+                default:
+                    return null;
+            }
+        });
+
+        private String getHeader(final String name) {
+            final List<String> values = headers.get(name);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        }
+
+        private String getBody() {
+            return body.toString(StandardCharsets.UTF_8);
+        }
+
+        private String getGunzippedBody() throws IOException {
+            try (final GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(body.toByteArray()))) {
+                return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CrawlerBufferPolicyTest {
+
+    @Test
+    public void checkCountAndBytesLimits() {
+        final CrawlerBufferPolicy policy = new CrawlerBufferPolicy(10, 1000, 0, 0);
+        final long now = System.nanoTime();
+        Assert.assertFalse(policy.isFull(0, 0, now));
+        Assert.assertFalse(policy.isFull(9, 999, now));
+        Assert.assertTrue(policy.isFull(10, 0, now));
+        Assert.assertTrue(policy.isFull(1, 1000, now));
+    }
+
+    @Test
+    public void checkAgeLimit() {
+        final CrawlerBufferPolicy policy = new CrawlerBufferPolicy(10, 0, 60, 0);
+        Assert.assertFalse(policy.isFull(1, 0, System.nanoTime()));
+        Assert.assertTrue(policy.isFull(1, 0, System.nanoTime() - TimeUnit.SECONDS.toNanos(61)));
+    }
+
+    @Test
+    public void checkAdaptiveMode() {
+        final CrawlerBufferPolicy policy = new CrawlerBufferPolicy(1000, 0, 0, 1000);
+        Assert.assertEquals(250, policy.getTargetCount());
+
+        // Fast flushes let the batch grow, up to the "buffer" value
+        for (int i = 0; i < 100; i++)
+            policy.recordFlush(policy.getTargetCount(), TimeUnit.MILLISECONDS.toNanos(100));
+        Assert.assertEquals(1000, policy.getTargetCount());
+
+        // A slow flush halves the batch
+        policy.recordFlush(1000, TimeUnit.MILLISECONDS.toNanos(2000));
+        Assert.assertEquals(500, policy.getTargetCount());
+    }
+}
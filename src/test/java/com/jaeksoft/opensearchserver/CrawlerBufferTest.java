@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.qwazr.utils.ObjectMappers;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CrawlerBufferTest {
+
+    private static CrawlerResult crawlerResult(final String url) {
+        return new CrawlerResult(url, 1, "text/html", 200, null, null, null);
+    }
+
+    @Test
+    public void checkDrainedDocuments() {
+        final CrawlerBuffer buffer = new CrawlerBuffer(new CrawlerBufferPolicy(2, 0, 0, 0));
+        final List<String> posted = new ArrayList<>();
+        Assert.assertTrue(buffer.isEmpty());
+        Assert.assertFalse(buffer.add(crawlerResult("http://localhost/1"), () -> posted.add("1")));
+        Assert.assertTrue(buffer.add(crawlerResult("http://localhost/2"), null));
+        Assert.assertEquals(2, buffer.size());
+
+        // The same documents as the JSON tree of each result
+        final CrawlerBuffer.Batch batch = buffer.drain();
+        final ArrayNode expected = ObjectMappers.JSON.createArrayNode()
+            .add(ObjectMappers.JSON.valueToTree(crawlerResult("http://localhost/1")))
+            .add(ObjectMappers.JSON.valueToTree(crawlerResult("http://localhost/2")));
+        Assert.assertEquals(expected, batch.toDocuments());
+        batch.callbacks.forEach(Runnable::run);
+        Assert.assertEquals(List.of("1"), posted);
+
+        // The buffer is empty and reusable
+        Assert.assertTrue(buffer.isEmpty());
+        Assert.assertFalse(buffer.add(crawlerResult("http://localhost/3"), null));
+        Assert.assertEquals(1, buffer.drain().toDocuments().size());
+        Assert.assertEquals(0, buffer.drain().toDocuments().size());
+    }
+
+    @Test
+    public void checkAgeLimitWithoutFurtherResult() throws InterruptedException {
+        final CrawlerBuffer buffer = new CrawlerBuffer(new CrawlerBufferPolicy(100, 0, 1, 0));
+        final BlockingQueue<CrawlerBuffer.Batch> flushed = new LinkedBlockingQueue<>();
+        try (final ExtractionPool pool = new ExtractionPool(null, null, 1000, 1024, Map.of(), null)) {
+            final long start = System.nanoTime();
+            synchronized (buffer) {
+                Assert.assertFalse(buffer.add(crawlerResult("http://localhost/1"), null));
+            }
+            // The same check as the collector
+            final ScheduledFuture<?> ageCheck = pool.scheduleWithFixedDelay(() -> {
+                synchronized (buffer) {
+                    if (buffer.isFull())
+                        flushed.add(buffer.drain());
+                }
+            }, 100);
+            // No further result: the buffer is flushed once it is one second old
+            final CrawlerBuffer.Batch batch = flushed.poll(10, TimeUnit.SECONDS);
+            ageCheck.cancel(false);
+            Assert.assertNotNull(batch);
+            Assert.assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1));
+            Assert.assertEquals(1, batch.toDocuments().size());
+            Assert.assertTrue(buffer.isEmpty());
+            Assert.assertTrue(flushed.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.qwazr.utils.ObjectMappers;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CrawlerSpoolTest {
+
+    private static void append(final CrawlerSpool spool, final String url) {
+        spool.append(ObjectMappers.JSON.createObjectNode().put("url", url));
+    }
+
+    @Test
+    public void checkAppendAndCrashTruncation() throws IOException {
+        final Path directory = Files.createTempDirectory("spool");
+        final Path segment;
+        try (final CrawlerSpool spool = CrawlerSpool.open(directory, "index", 0)) {
+            append(spool, "http://localhost/1");
+            append(spool, "http://localhost/2");
+            segment = spool.closeSegment();
+        }
+        Assert.assertEquals(2, CrawlerSpool.read(segment).size());
+
+        // Simulate a crash while writing a record
+        Files.write(segment, new byte[]{0, 0, 0, 100, 1, 2}, StandardOpenOption.APPEND);
+        final ArrayNode documents = CrawlerSpool.read(segment);
+        Assert.assertEquals(2, documents.size());
+        Assert.assertEquals("http://localhost/2", documents.get(1).get("url").asText());
+    }
+
+    @Test
+    public void checkClaimAndReplay() throws IOException {
+        final Path directory = Files.createTempDirectory("spool");
+        final List<ArrayNode> posted = new ArrayList<>();
+
+        // A session which could not post its buffers
+        try (final CrawlerSpool spool = CrawlerSpool.open(directory, "my.index", 0)) {
+            append(spool, "http://localhost/1");
+            spool.retain(spool.closeSegment());
+            append(spool, "http://localhost/2");
+            spool.retain(spool.closeSegment());
+            Assert.assertFalse(spool.replay(documents -> {
+                throw new IllegalStateException("Index service not available");
+            }));
+            Assert.assertEquals(2, spool.getPendingCount());
+
+            // The spool is owned by the session
+            Assert.assertNull(CrawlerSpool.open(directory, "my.index", 0));
+            try (final CrawlerSpoolReplayer replayer = new CrawlerSpoolReplayer(directory,
+                (index, documents) -> posted.add(documents), 60000)) {
+                Assert.assertEquals(0, replayer.replayAll());
+            }
+            Assert.assertTrue(posted.isEmpty());
+        }
+        Assert.assertEquals(Set.of("my.index"), CrawlerSpool.getSpooledIndexes(directory));
+
+        // The segments are claimed and replayed in order once the session is closed
+        try (final CrawlerSpoolReplayer replayer = new CrawlerSpoolReplayer(directory,
+            (index, documents) -> {
+                Assert.assertEquals("my.index", index);
+                posted.add(documents);
+            }, 60000)) {
+            Assert.assertEquals(0, replayer.replayAll());
+        }
+        Assert.assertEquals(2, posted.size());
+        Assert.assertEquals("http://localhost/1", posted.get(0).get(0).get("url").asText());
+        Assert.assertEquals("http://localhost/2", posted.get(1).get(0).get("url").asText());
+        Assert.assertTrue(CrawlerSpool.getSpooledIndexes(directory).isEmpty());
+
+        try (final CrawlerSpool spool = CrawlerSpool.open(directory, "my.index", 0)) {
+            Assert.assertEquals(0, spool.getPendingCount());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.qwazr.extractor.ParserResult;
+import com.qwazr.utils.ObjectMappers;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import javax.ws.rs.core.MediaType;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExtractionCacheTest {
+
+    private final static MediaType HTML = MediaType.valueOf("text/html");
+
+    private static byte[] digest(final String content) {
+        return FingerprintStore.digest(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ParserResult parserResult(final String title) throws IOException {
+        final ObjectNode result = ObjectMappers.JSON.createObjectNode();
+        result.putObject("metas").put("title", title);
+        result.putArray("documents").addObject().put("content", "The content of " + title);
+        return ObjectMappers.JSON.treeToValue(result, ParserResult.class);
+    }
+
+    private static long countFiles(final Path directory) throws IOException {
+        try (final Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".smile")).count();
+        }
+    }
+
+    @Test
+    public void checkMemoryEvictionByBytes() throws IOException {
+        // The size of an entry, the results have the same size
+        final long entrySize;
+        final ExtractionCache sizer = new ExtractionCache(Long.MAX_VALUE, null, 0);
+        sizer.put(digest("a"), HTML, parserResult("a"));
+        entrySize = sizer.getMemoryBytes();
+        Assert.assertTrue(entrySize > 0);
+
+        final ExtractionCache cache = new ExtractionCache(entrySize * 2 + entrySize / 2, null, 0);
+        cache.put(digest("a"), HTML, parserResult("a"));
+        cache.put(digest("b"), HTML, parserResult("b"));
+        Assert.assertEquals(entrySize * 2, cache.getMemoryBytes());
+
+        // "a" is the most recently used, "b" is evicted
+        Assert.assertEquals("a", cache.get(digest("a"), HTML).metas.get("title"));
+        cache.put(digest("c"), HTML, parserResult("c"));
+        Assert.assertEquals(entrySize * 2, cache.getMemoryBytes());
+        Assert.assertNull(cache.get(digest("b"), HTML));
+        Assert.assertNotNull(cache.get(digest("a"), HTML));
+        Assert.assertNotNull(cache.get(digest("c"), HTML));
+
+        // The media type is part of the key
+        Assert.assertNull(cache.get(digest("a"), MediaType.valueOf("text/plain")));
+
+        // A result larger than the cache is not cached
+        final ExtractionCache tiny = new ExtractionCache(entrySize - 1, null, 0);
+        tiny.put(digest("a"), HTML, parserResult("a"));
+        Assert.assertEquals(0, tiny.getMemoryBytes());
+
+        Assert.assertEquals(3, cache.getMemoryHits());
+        Assert.assertEquals(0, cache.getDiskHits());
+        Assert.assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void checkDiskTier() throws IOException {
+        final Path directory = Files.createTempDirectory("extraction-cache");
+        final ExtractionCache sizer = new ExtractionCache(Long.MAX_VALUE, null, 0);
+        sizer.put(digest("a"), HTML, parserResult("a"));
+        final long entrySize = sizer.getMemoryBytes();
+
+        // The memory tier keeps one result, the disk tier keeps them all
+        final ExtractionCache cache = new ExtractionCache(entrySize, directory, Long.MAX_VALUE);
+        cache.put(digest("a"), HTML, parserResult("a"));
+        cache.put(digest("b"), HTML, parserResult("b"));
+        Assert.assertEquals(2, countFiles(directory));
+        final long diskBytes = cache.getDiskBytes();
+        Assert.assertTrue(diskBytes > 0);
+
+        Assert.assertEquals("a", cache.get(digest("a"), HTML).metas.get("title"));
+        Assert.assertEquals(1, cache.getDiskHits());
+        // Promoted to the memory tier
+        Assert.assertNotNull(cache.get(digest("a"), HTML));
+        Assert.assertEquals(1, cache.getMemoryHits());
+        Assert.assertEquals(1, cache.getDiskHits());
+
+        // The disk tier is reloaded after a restart
+        final ExtractionCache reloaded = new ExtractionCache(entrySize, directory, Long.MAX_VALUE);
+        Assert.assertEquals(diskBytes, reloaded.getDiskBytes());
+        Assert.assertEquals(0, reloaded.getMemoryBytes());
+        Assert.assertEquals("b", reloaded.get(digest("b"), HTML).metas.get("title"));
+        Assert.assertEquals(1, reloaded.getDiskHits());
+
+        // The oldest files are deleted when the size limit is reached
+        final ExtractionCache bounded = new ExtractionCache(entrySize, directory, diskBytes / 2 + 1);
+        Assert.assertEquals(1, countFiles(directory));
+        bounded.put(digest("c"), HTML, parserResult("c"));
+        Assert.assertEquals(1, countFiles(directory));
+        Assert.assertTrue(bounded.getDiskBytes() <= diskBytes / 2 + 1);
+        Assert.assertNull(new ExtractionCache(1, directory, Long.MAX_VALUE).get(digest("a"), HTML));
+    }
+
+    @Test
+    public void checkCharsetInKey() throws IOException {
+        final ExtractionCache cache = new ExtractionCache(Long.MAX_VALUE, null, 0);
+        cache.put(digest("a"), MediaType.valueOf("text/html; charset=ISO-8859-1"), parserResult("a"));
+
+        // The same bytes decoded with another charset are another result
+        Assert.assertNull(cache.get(digest("a"), MediaType.valueOf("text/html; charset=UTF-8")));
+        Assert.assertNull(cache.get(digest("a"), HTML));
+
+        // The charset is normalized: case and aliases
+        Assert.assertNotNull(cache.get(digest("a"), MediaType.valueOf("text/html; charset=iso-8859-1")));
+        Assert.assertNotNull(cache.get(digest("a"), MediaType.valueOf("text/html;charset=latin1")));
+
+        // Other parameters are ignored
+        Assert.assertNotNull(cache.get(digest("a"), MediaType.valueOf("text/html; charset=ISO-8859-1; level=1")));
+    }
+}
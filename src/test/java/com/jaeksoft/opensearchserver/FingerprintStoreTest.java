@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FingerprintStoreTest {
+
+    @Test
+    public void checkPersistence() throws IOException {
+        final Path storePath = Files.createTempDirectory("fingerprints").resolve("fingerprints.db");
+        final byte[] digest1 = FingerprintStore.digest("content1".getBytes(StandardCharsets.UTF_8));
+        final byte[] digest2 = FingerprintStore.digest("content2".getBytes(StandardCharsets.UTF_8));
+
+        try (final FingerprintStore store = new FingerprintStore(storePath)) {
+            Assert.assertFalse(store.isUnchanged("index", "http://localhost/", digest1));
+            store.put("index", "http://localhost/", digest1);
+            Assert.assertTrue(store.isUnchanged("index", "http://localhost/", digest1));
+            Assert.assertFalse(store.isUnchanged("index", "http://localhost/", digest2));
+            Assert.assertFalse(store.isUnchanged("other", "http://localhost/", digest1));
+        }
+
+        // Simulate a crash while writing a record
+        Files.write(storePath, new byte[]{1, 2, 3}, StandardOpenOption.APPEND);
+
+        try (final FingerprintStore store = new FingerprintStore(storePath)) {
+            Assert.assertEquals(1, store.size());
+            Assert.assertTrue(store.isUnchanged("index", "http://localhost/", digest1));
+            store.put("index", "http://localhost/", digest2);
+        }
+
+        try (final FingerprintStore store = new FingerprintStore(storePath)) {
+            Assert.assertTrue(store.isUnchanged("index", "http://localhost/", digest2));
+        }
+    }
+
+    @Test
+    public void checkCompactionWhileCrawling() throws IOException {
+        final Path storePath = Files.createTempDirectory("fingerprints").resolve("fingerprints.db");
+        final byte[] digest1 = FingerprintStore.digest("content1".getBytes(StandardCharsets.UTF_8));
+        final byte[] digest2 = FingerprintStore.digest("content2".getBytes(StandardCharsets.UTF_8));
+
+        try (final FingerprintStore store = new FingerprintStore(storePath, 10)) {
+            for (int i = 0; i < 5; i++)
+                store.put("index", "http://localhost/" + i, digest1);
+            // Each update leaves a dead record until the file holds more than twice the live records
+            for (int i = 0; i < 5; i++)
+                store.put("index", "http://localhost/" + i, i % 2 == 0 ? digest2 : digest1);
+            for (int i = 0; i < 5; i++)
+                store.put("index", "http://localhost/" + i, i % 2 == 0 ? digest1 : digest2);
+            Assert.assertEquals(5, store.size());
+            Assert.assertTrue(store.getRecords() <= 10);
+            Assert.assertEquals(store.getRecords() * 48, Files.size(storePath));
+            store.put("index", "http://localhost/5", digest2);
+        }
+
+        try (final FingerprintStore store = new FingerprintStore(storePath, 10)) {
+            Assert.assertEquals(6, store.size());
+            for (int i = 0; i < 5; i++)
+                Assert.assertTrue(store.isUnchanged("index", "http://localhost/" + i, i % 2 == 0 ? digest1 : digest2));
+            Assert.assertTrue(store.isUnchanged("index", "http://localhost/5", digest2));
+        }
+    }
+}
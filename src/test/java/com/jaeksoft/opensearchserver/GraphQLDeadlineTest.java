@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2015-2020 Emmanuel Keller / QWAZR
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import graphql.ExecutionInput;
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+import graphql.GraphQLContext;
+import graphql.execution.AbortExecutionException;
+import graphql.schema.AsyncDataFetcher;
+import graphql.schema.DataFetcher;
+import graphql.schema.idl.RuntimeWiring;
+import graphql.schema.idl.SchemaGenerator;
+import graphql.schema.idl.SchemaParser;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GraphQLDeadlineTest {
+
+    private final static String SCHEMA = "type Query { items: [Item] } type Item { name: String, children: [Item] }";
+
+    // 1 + 10 + 50 + 250 + 625 fields: 936 fetches of 10 ms on two threads, about 5 seconds
+    private final static String QUERY = "{ items { name children { name children { name children { name } } } } }";
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+    private final AtomicInteger fetches = new AtomicInteger();
+
+    @After
+    public void cleanup() {
+        executor.shutdownNow();
+    }
+
+    private GraphQL newGraphQL() {
+        final DataFetcher<Object> slowFetcher = environment -> {
+            fetches.incrementAndGet();
+            Thread.sleep(10);
+            return "name".equals(environment.getField().getName()) ? "name" : List.of(1, 2, 3, 4, 5);
+        };
+        final DataFetcher<?> fetcher = AsyncDataFetcher.async(GraphQLDeadline.checked(slowFetcher), executor);
+        final RuntimeWiring wiring = RuntimeWiring.newRuntimeWiring()
+            .type("Query", type -> type.dataFetcher("items", fetcher))
+            .type("Item", type -> type.dataFetcher("name", fetcher).dataFetcher("children", fetcher))
+            .build();
+        return GraphQL.newGraphQL(
+            new SchemaGenerator().makeExecutableSchema(new SchemaParser().parse(SCHEMA), wiring)).build();
+    }
+
+    @Test
+    public void fetchersStopAfterTheDeadline() throws InterruptedException {
+        final long start = System.nanoTime();
+        final ExecutionResult result = newGraphQL().executeAsync(ExecutionInput.newExecutionInput(QUERY)
+            .context(GraphQLDeadline.start(GraphQLContext.newContext(), 300))
+            .build()).join();
+        final long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        final int fetchesAtCompletion = fetches.get();
+
+        // The execution ends shortly after the deadline, with the fields not fetched reported as errors
+        Assert.assertTrue("Elapsed: " + elapsedMs + " ms", elapsedMs < 2000);
+        Assert.assertTrue(fetchesAtCompletion < 936);
+        Assert.assertFalse(result.getErrors().isEmpty());
+        Assert.assertTrue(result.getErrors().get(0).getMessage().contains(AbortExecutionException.class.getName()));
+
+        // No fetcher starts after the completion
+        Thread.sleep(300);
+        Assert.assertEquals(fetchesAtCompletion, fetches.get());
+    }
+
+    @Test
+    public void fetchersCompleteBeforeTheDeadline() {
+        final ExecutionResult result = newGraphQL().executeAsync(ExecutionInput.newExecutionInput("{ items { name } }")
+            .context(GraphQLDeadline.start(GraphQLContext.newContext(), 60000))
+            .build()).join();
+        Assert.assertTrue(result.getErrors().isEmpty());
+        Assert.assertEquals(6, fetches.get());
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GraphQLListFetchersTest {
+
+    private final static NavigableSet<String> NAMES =
+        new TreeSet<>(List.of("alpha", "beta", "delta", "gamma", "omega"));
+
+    private static List<String> nodes(final GraphQLListFetchers.Connection connection) {
+        return connection.getEdges().stream().map(GraphQLListFetchers.Edge::getNode).collect(Collectors.toList());
+    }
+
+    @Test
+    public void checkCursorPagination() {
+        final GraphQLListFetchers.Connection page1 = new GraphQLListFetchers.ConnectionKey(null, 2, null).apply(NAMES);
+        Assert.assertEquals(List.of("alpha", "beta"), nodes(page1));
+        Assert.assertTrue(page1.getPageInfo().getHasNextPage());
+
+        // A name created before the cursor does not shift the next page
+        final NavigableSet<String> names = new TreeSet<>(NAMES);
+        names.add("aaa");
+        final GraphQLListFetchers.Connection page2 = new GraphQLListFetchers.ConnectionKey(null, 2,
+            page1.getPageInfo().getEndCursor()).apply(names);
+        Assert.assertEquals(List.of("delta", "gamma"), nodes(page2));
+
+        final GraphQLListFetchers.Connection page3 = new GraphQLListFetchers.ConnectionKey(null, 2,
+            page2.getPageInfo().getEndCursor()).apply(names);
+        Assert.assertEquals(List.of("omega"), nodes(page3));
+        Assert.assertFalse(page3.getPageInfo().getHasNextPage());
+    }
+
+    @Test
+    public void checkKeywords() {
+        Assert.assertEquals(List.of("alpha", "delta", "gamma", "omega"),
+            nodes(new GraphQLListFetchers.ConnectionKey(" A ", 10, null).apply(NAMES)));
+        Assert.assertEquals(List.of("delta", "gamma"),
+            new GraphQLListFetchers.ListKey("a", 1, 2).apply(NAMES));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkInvalidCursor() {
+        GraphQLListFetchers.decodeCursor("bm90LWEtY3Vyc29y");
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GraphQLSearchFetchersTest {
+
+    private final AtomicReference<Long> version = new AtomicReference<>(1L);
+    private final AtomicInteger versionLookups = new AtomicInteger();
+    private final AtomicInteger searches = new AtomicInteger();
+
+    private GraphQLSearchFetchers fetchers(final long versionTtlMs) {
+        return new GraphQLSearchFetchers(index -> {
+            versionLookups.incrementAndGet();
+            return version.get();
+        }, (index, queryDefinition) -> {
+            searches.incrementAndGet();
+            return new GraphQLSearchFetchers.SearchResult(3_000_000_000L, List.of());
+        }, 10, versionTtlMs);
+    }
+
+    private static GraphQLSearchFetchers.SearchResult search(final GraphQLSearchFetchers fetchers,
+                                                             final String query) {
+        return fetchers.search("index", query, null, null, null, List.of("title"));
+    }
+
+    @Test
+    public void cacheHitsDoNotReadTheVersion() {
+        final GraphQLSearchFetchers fetchers = fetchers(60_000);
+        final GraphQLSearchFetchers.SearchResult result = search(fetchers, "open  search");
+        Assert.assertSame(result, search(fetchers, " open search "));
+        Assert.assertEquals(1, searches.get());
+        Assert.assertEquals(1, versionLookups.get());
+        Assert.assertEquals(1, fetchers.getCacheHits());
+        Assert.assertEquals(1, fetchers.getCacheMisses());
+        // The total number of hits is a long
+        Assert.assertEquals(3_000_000_000L, result.getTotalHits());
+
+        // A commit is not seen before the TTL, unless the version is invalidated
+        version.set(2L);
+        search(fetchers, "open search");
+        Assert.assertEquals(1, searches.get());
+        fetchers.invalidate("index");
+        search(fetchers, "open search");
+        Assert.assertEquals(2, searches.get());
+        Assert.assertEquals(2, versionLookups.get());
+    }
+
+    @Test
+    public void newVersionInvalidatesTheResults() {
+        final GraphQLSearchFetchers fetchers = fetchers(0);
+        search(fetchers, "open search");
+        search(fetchers, "open search");
+        Assert.assertEquals(1, searches.get());
+        Assert.assertEquals(2, versionLookups.get());
+        version.set(2L);
+        search(fetchers, "open search");
+        Assert.assertEquals(2, searches.get());
+    }
+
+    @Test
+    public void unknownVersionIsNotCached() {
+        version.set(null);
+        final GraphQLSearchFetchers fetchers = fetchers(0);
+        search(fetchers, "open search");
+        search(fetchers, "open search");
+        Assert.assertEquals(2, searches.get());
+        Assert.assertEquals(0, fetchers.getCacheHits());
+    }
+}
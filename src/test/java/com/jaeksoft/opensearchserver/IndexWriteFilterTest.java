@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.qwazr.search.index.IndexServiceInterface;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.core.PathSegment;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IndexWriteFilterTest {
+
+    private final List<String> writtenIndexes = new ArrayList<>();
+    private final IndexWriteFilter filter = new IndexWriteFilter(writtenIndexes::add);
+
+    private void filter(final String method, final int status, final String... path) {
+        final List<PathSegment> segments = Stream.of(path)
+            .map(segment -> proxy(PathSegment.class, name -> "getPath".equals(name) ? segment : null))
+            .collect(Collectors.toList());
+        final UriInfo uriInfo = proxy(UriInfo.class, name -> "getPathSegments".equals(name) ? segments : null);
+        filter.filter(proxy(ContainerRequestContext.class, name -> {
+                switch (name) {
+                    case "getMethod":
+                        return method;
+                    case "getUriInfo":
+                        return uriInfo;
+                    default:
+                        return null;
+                }
+            }),
+            proxy(ContainerResponseContext.class,
+                name -> "getStatusInfo".equals(name) ? Response.Status.fromStatusCode(status) : null));
+    }
+
+    private static <T> T proxy(final Class<T> type, final Function<String, Object> handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+            (proxy, method, args) -> handler.apply(method.getName())));
+    }
+
+    @Test
+    public void successfulWritesAreNotified() {
+        filter("POST", 200, IndexServiceInterface.PATH, "my_index", "json");
+        filter("DELETE", 204, IndexServiceInterface.PATH, "other_index");
+        Assert.assertEquals(List.of("my_index", "other_index"), writtenIndexes);
+    }
+
+    @Test
+    public void readsFailuresAndOtherPathsAreIgnored() {
+        filter("GET", 200, IndexServiceInterface.PATH, "my_index");
+        filter("POST", 500, IndexServiceInterface.PATH, "my_index", "json");
+        filter("POST", 200, IndexServiceInterface.PATH);
+        filter("POST", 200, "crawler", "web", "my_session");
+        Assert.assertTrue(writtenIndexes.isEmpty());
+    }
+}
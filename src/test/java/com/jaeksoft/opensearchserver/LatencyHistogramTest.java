@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void checkBuckets() {
+        for (long value = 0; value < 100000; value++) {
+            final int index = LatencyHistogram.bucketIndex(value);
+            Assert.assertTrue(value <= LatencyHistogram.bucketUpperBound(index));
+            if (index > 0)
+                Assert.assertTrue(value > LatencyHistogram.bucketUpperBound(index - 1));
+        }
+        final int last = LatencyHistogram.bucketIndex(Long.MAX_VALUE);
+        Assert.assertEquals(Long.MAX_VALUE, LatencyHistogram.bucketUpperBound(last));
+    }
+
+    @Test
+    public void checkQuantiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getQuantile(0.5));
+        for (int i = 1; i <= 100; i++)
+            histogram.record(i * 1000L);
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(5050000, histogram.getSum());
+        final long p50 = histogram.getQuantile(0.5);
+        Assert.assertTrue(p50 >= 50000 && p50 < 50000 * 1.25);
+        final long p99 = histogram.getQuantile(0.99);
+        Assert.assertTrue(p99 >= 99000 && p99 < 99000 * 1.25);
+    }
+}
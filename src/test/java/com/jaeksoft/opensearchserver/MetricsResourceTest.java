@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetricsResourceTest {
+
+    @Test
+    public void checkPrometheusFormat() {
+        final ServerMetrics metrics = new ServerMetrics();
+        metrics.pagesCollected.add(3);
+        metrics.recordFlush(10, TimeUnit.MILLISECONDS.toNanos(20));
+
+        final MetricsResource.PrometheusWriter writer = new MetricsResource.PrometheusWriter();
+        metrics.collect(writer);
+        writer.gauge("oss_executor_queue_size", "Queued tasks", 4, "executor", "in\"dex");
+        writer.gauge("oss_executor_queue_size", "Queued tasks", 0, "executor", "crawler");
+        final String text = writer.toString();
+
+        Assert.assertTrue(text.contains("# TYPE oss_crawl_pages_total counter\noss_crawl_pages_total 3\n"));
+        Assert.assertTrue(text.contains("oss_index_documents_total 10\n"));
+        Assert.assertTrue(text.contains("# TYPE oss_index_flush_seconds summary\n"));
+        Assert.assertTrue(text.contains("oss_index_flush_seconds_count 1\n"));
+        Assert.assertTrue(text.contains("oss_index_flush_seconds{quantile=\"0.5\"} 0.0"));
+        Assert.assertTrue(text.contains("oss_executor_queue_size{executor=\"in\\\"dex\"} 4\n"));
+        // The header of a family is written once
+        Assert.assertEquals(text.indexOf("# TYPE oss_executor_queue_size"),
+            text.lastIndexOf("# TYPE oss_executor_queue_size"));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.qwazr.utils.ObjectMappers;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import javax.ws.rs.NotAcceptableException;
+import javax.ws.rs.core.MediaType;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParserRegistryTest {
+
+    @Test
+    public void checkIndexReuse() throws IOException {
+        final Path parsersDirectory = Files.createTempDirectory("parsers");
+        final Path registryDirectory = Files.createTempDirectory("parser-registry");
+        final Path htmlJar = Files.writeString(parsersDirectory.resolve("html.jar"), "html");
+        Files.writeString(parsersDirectory.resolve("pdf.jar"), "pdf");
+
+        // First boot: the jars are listed, nothing is loaded
+        try (final ParserRegistry registry = new ParserRegistry(parsersDirectory, registryDirectory)) {
+            Assert.assertTrue(registry.getMediaTypes().isEmpty());
+            Assert.assertEquals(0, registry.getLoadedCount());
+        }
+        final Path indexPath = registryDirectory.resolve("registry.json");
+        final ObjectNode index = (ObjectNode) ObjectMappers.JSON.readTree(indexPath.toFile());
+        Assert.assertEquals(2, index.get("jars").size());
+        Assert.assertEquals("html.jar", index.get("jars").get(0).get("file").asText());
+
+        // A learned media type is known after a restart
+        ((ObjectNode) index.get("jars").get(0)).putArray("mediaTypes").add("text/html");
+        ObjectMappers.JSON.writeValue(indexPath.toFile(), index);
+        try (final ParserRegistry registry = new ParserRegistry(parsersDirectory, registryDirectory)) {
+            Assert.assertEquals(Map.of("text/html", "html.jar"), registry.getMediaTypes());
+            Assert.assertEquals(0, registry.getLoadedCount());
+        }
+
+        // Same content, new modification time: the checksum matches
+        Files.setLastModifiedTime(htmlJar, FileTime.fromMillis(System.currentTimeMillis() + 60000));
+        try (final ParserRegistry registry = new ParserRegistry(parsersDirectory, registryDirectory)) {
+            Assert.assertEquals(Map.of("text/html", "html.jar"), registry.getMediaTypes());
+        }
+
+        // A media type rejected by every jar is rejected without loading any jar
+        final ObjectNode index2 = (ObjectNode) ObjectMappers.JSON.readTree(indexPath.toFile());
+        index2.get("jars").forEach(jar -> ((ObjectNode) jar).putArray("unsupportedMediaTypes").add("image/png"));
+        ObjectMappers.JSON.writeValue(indexPath.toFile(), index2);
+        try (final ParserRegistry registry = new ParserRegistry(parsersDirectory, registryDirectory)) {
+            Assert.assertThrows(NotAcceptableException.class, () -> registry.extract(
+                new ByteArrayInputStream(new byte[0]), MediaType.valueOf("image/png")));
+            Assert.assertEquals(0, registry.getLoadedCount());
+        }
+        Assert.assertEquals("image/png", ObjectMappers.JSON.readTree(indexPath.toFile())
+            .get("jars").get(1).get("unsupportedMediaTypes").get(0).asText());
+
+        // New content: the media types have to be learned again
+        Files.write(htmlJar, "html2".getBytes(StandardCharsets.UTF_8));
+        try (final ParserRegistry registry = new ParserRegistry(parsersDirectory, registryDirectory)) {
+            Assert.assertTrue(registry.getMediaTypes().isEmpty());
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import java.util.regex.Pattern;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UserInfoFilterTest {
+
+    @Test
+    public void checkSkipPattern() {
+        Assert.assertNull(UserInfoFilter.toSkipPattern(null));
+        Assert.assertNull(UserInfoFilter.toSkipPattern(" , "));
+        final Pattern pattern = Pattern.compile(UserInfoFilter.toSkipPattern("/static/*, /favicon.ico"));
+        Assert.assertTrue(pattern.matcher("/static/main.3f2a1b.js").matches());
+        Assert.assertTrue(pattern.matcher("/static/css/main.css").matches());
+        Assert.assertTrue(pattern.matcher("/favicon.ico").matches());
+        Assert.assertFalse(pattern.matcher("/favicon.icon").matches());
+        Assert.assertFalse(pattern.matcher("/staticfile").matches());
+        Assert.assertFalse(pattern.matcher("/graphql").matches());
+        Assert.assertFalse(pattern.matcher("/").matches());
+        // A path resolved outside of the public paths is never skipped
+        Assert.assertFalse(pattern.matcher("/static/../ws/indexes").matches());
+        Assert.assertFalse(pattern.matcher("/static/css/../../graphql").matches());
+        Assert.assertFalse(pattern.matcher("/static/..").matches());
+        Assert.assertFalse(pattern.matcher("/static/./main.js").matches());
+        Assert.assertFalse(pattern.matcher("/static/%2e%2e/ws").matches());
+        Assert.assertFalse(pattern.matcher("/static/..;/ws").matches());
+        Assert.assertFalse(pattern.matcher("/static/..\\ws").matches());
+        Assert.assertTrue(pattern.matcher("/static/main..chunk.js").matches());
+    }
+
+    @Test
+    public void checkMonitoringPaths() {
+        final Pattern pattern = Pattern.compile(UserInfoFilter.toSkipPattern("/metrics,/health,/health/*"));
+        Assert.assertTrue(pattern.matcher("/metrics").matches());
+        Assert.assertTrue(pattern.matcher("/health").matches());
+        Assert.assertTrue(pattern.matcher("/health/live").matches());
+        Assert.assertFalse(pattern.matcher("/metrics/../ws/indexes").matches());
+        Assert.assertFalse(pattern.matcher("/health/../graphql").matches());
+        Assert.assertFalse(pattern.matcher("/healthz").matches());
+    }
+}
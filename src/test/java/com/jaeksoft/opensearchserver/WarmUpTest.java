@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017-2020 Emmanuel Keller / Jaeksoft
+ *  <p>
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  <p>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.jaeksoft.opensearchserver;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WarmUpTest {
+
+    @Test
+    public void checkReadiness() throws Exception {
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final WarmUp warmUp = new WarmUp()
+            .task("first", () -> {
+                started.countDown();
+                return release.await(10, TimeUnit.SECONDS);
+            })
+            .task("second", () -> {
+                started.countDown();
+                return release.await(10, TimeUnit.SECONDS);
+            })
+            .start();
+
+        // The tasks run concurrently
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(warmUp.isReady());
+        Assert.assertNull(warmUp.getStatus().durationMs);
+        Assert.assertEquals(WarmUp.State.PENDING, warmUp.getStatus().components.get(0).state);
+
+        release.countDown();
+        warmUp.getCompletion().get(10, TimeUnit.SECONDS);
+        Assert.assertTrue(warmUp.isReady());
+        final WarmUp.Status status = warmUp.getStatus();
+        Assert.assertTrue(status.ready);
+        Assert.assertNotNull(status.durationMs);
+        Assert.assertEquals("first", status.components.get(0).name);
+        Assert.assertEquals(WarmUp.State.READY, status.components.get(1).state);
+    }
+
+    @Test
+    public void checkFailure() throws Exception {
+        final WarmUp warmUp = new WarmUp()
+            .task("ok", () -> "ok")
+            .task("broken", () -> {
+                throw new IOException("Cannot open");
+            })
+            .start();
+        warmUp.getCompletion().get(10, TimeUnit.SECONDS);
+        Assert.assertFalse(warmUp.isReady());
+        final WarmUp.Component broken = warmUp.getStatus().components.get(1);
+        Assert.assertEquals(WarmUp.State.FAILED, broken.state);
+        Assert.assertEquals("Cannot open", broken.error);
+    }
+}